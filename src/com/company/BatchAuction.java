@@ -0,0 +1,67 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+
+class PendingOrder {
+    // An order waiting for the next batch auction. It has already been reported to the
+    // client through startOrder. Its units are created when it joins the batch.
+    final UUID orderID;
+    final UUID clientID;
+    final int price;
+    final int direction;
+    final int size;
+    // Arrival order within the current batch, set when it joins the batch
+    long sequence;
+    final ArrayList<PurchaseInformation> units;
+
+    public PendingOrder(UUID orderID, UUID clientID, int price, int direction, int size) {
+        this.orderID = orderID;
+        this.clientID = clientID;
+        this.price = price;
+        this.direction = direction;
+        this.size = size;
+        this.units = new ArrayList<>(size);
+    }
+}
+
+
+class AuctionInformation {
+    // Uniform price every fill in the auction traded at, -1 if nothing traded
+    final int clearingPrice;
+    final int volume;
+
+    public AuctionInformation(int clearingPrice, int volume) {
+        this.clearingPrice = clearingPrice;
+        this.volume = volume;
+    }
+}
+
+
+class BatchAuctioneer extends Thread {
+    private final Exchange exchange;
+    private final int auctionWait;
+
+    public BatchAuctioneer(Exchange exchange, int auctionWait) {
+        this.exchange = exchange;
+        this.auctionWait = auctionWait;
+    }
+
+    public void run() {
+        while(!interrupted()) {
+            try {
+                Thread.sleep(auctionWait);
+                exchange.runAuction();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        System.out.println("Batch auctioneer exited");
+    }
+
+    public void start() {
+        System.out.println("Starting batch auctioneer");
+        super.start();
+    }
+}
@@ -10,19 +10,34 @@ import java.sql.Timestamp;
 import java.util.*;
 
 
-class LogWriter extends FileWriter {
+class LogWriter {
     String identifier;
+    // null when logging is disabled, e.g. for isolated runs in a parameter sweep
+    private final FileWriter writer;
 
     public LogWriter(String fileName, String identifier) throws IOException {
-        super(fileName);
+        this.writer = new FileWriter(fileName);
         this.identifier = identifier;
     }
 
+    public LogWriter(String identifier) {
+        // A log writer that discards everything written to it
+        this.writer = null;
+        this.identifier = identifier;
+    }
+
+    boolean isEnabled() {
+        return writer != null;
+    }
+
     public void write(String str) {
+        if(writer == null) {
+            return;
+        }
         try {
             Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-            super.write(timestamp + ", " + str + "\n");
-            super.flush();
+            writer.write(timestamp + ", " + str + "\n");
+            writer.flush();
         } catch(IOException e) {
             System.out.println("Logging failed for " + identifier);
         }
@@ -36,8 +51,8 @@ public class Client {
     private final Object lock = new Object();
 
     public Client(Exchange exchange_object) {
-        clientID = UUID.randomUUID();
         exchange = exchange_object;
+        clientID = exchange.nextID();
         orderPositions = new HashMap<UUID, Integer>();
 
         // We must let the exchange know about us to receive trade information
@@ -76,6 +91,31 @@ public class Client {
         }
     }
 
+    void startOrder(UUID orderID, int position) {
+        // Exchange can tell us when a whole order has been queued, instead of unit by unit
+        synchronized (lock) {
+            int newPosition = position + orderPositions.getOrDefault(orderID, 0);
+            if (newPosition == 0) {
+                orderPositions.remove(orderID);
+            } else {
+                orderPositions.put(orderID, newPosition);
+            }
+        }
+    }
+
+    List<UUID> getOpenOrderIDs() {
+        synchronized (lock) {
+            return new ArrayList<UUID>(orderPositions.keySet());
+        }
+    }
+
+    int getOrderPosition(UUID orderID) {
+        synchronized (lock) {
+            Integer position = orderPositions.get(orderID);
+            return position == null ? 0 : position;
+        }
+    }
+
     OrderInformation requestForQuotes(int size, boolean buying) {
         int tickPrice = buying ? exchange.maxPrice - 1 : 0;
 
@@ -87,6 +127,10 @@ public class Client {
     }
 
     boolean cancelOrder(UUID orderID, int size) { return exchange.cancelOrder(clientID, orderID, size); }
+
+    OrderInformation amendOrder(UUID orderID, int tickPrice, int size) {
+        return exchange.amendOrder(clientID, orderID, tickPrice, size);
+    }
 }
 
 class SimulatorClient extends Client implements Runnable {
@@ -95,11 +139,18 @@ class SimulatorClient extends Client implements Runnable {
     Thread t;
     int threadWait;
     LogWriter simulatorLogger;
+    // Running totals used when summarising a simulation
+    long totalRequested = 0;
+    long totalFilled = 0;
 
     public SimulatorClient(Exchange exchange_object, int sizeLimit, int threadWait, Path logDir) {
         super(exchange_object);
         this.sizeLimit = sizeLimit;
         this.threadWait = threadWait;
+        if(logDir == null) {
+            simulatorLogger = new LogWriter(clientID.toString());
+            return;
+        }
         try {
             String logFilePath = Paths.get(logDir.toString(), clientID.toString() + ".txt").toString();
             File simulatorLogFile = new File(logFilePath);
@@ -125,6 +176,13 @@ class SimulatorClient extends Client implements Runnable {
         );
     }
 
+    void startOrder(UUID orderID, int position) {
+        super.startOrder(orderID, position);
+        simulatorLogger.write(
+            "Order queued, order ID: " + orderID
+        );
+    }
+
     void simulateLimitOrder() {
         int tickPrice;
         do {
@@ -134,9 +192,35 @@ class SimulatorClient extends Client implements Runnable {
         } while(tickPrice < 0 || tickPrice >= exchange.maxPrice);
         int size = rand.nextInt(sizeLimit) + 1;
         boolean buying = rand.nextBoolean();
-        OrderInformation order = this.sendLimitOrder(size, buying, tickPrice);
+
+        // Once we have enough orders open, requote one of them on the same side instead of
+        // adding another
+        OrderInformation order = null;
+        List<UUID> sameSideOrderIDs = new ArrayList<UUID>();
+        List<UUID> openOrderIDs = getOpenOrderIDs();
+        if(openOrderIDs.size() >= 5) {
+            for(UUID orderID: openOrderIDs) {
+                if(getOrderPosition(orderID) * (buying ? 1 : -1) > 0) {
+                    sameSideOrderIDs.add(orderID);
+                }
+            }
+        }
+        if(!sameSideOrderIDs.isEmpty()) {
+            UUID orderIDToAmend = sameSideOrderIDs.get(rand.nextInt(sameSideOrderIDs.size()));
+            order = this.amendOrder(orderIDToAmend, tickPrice, size);
+        }
+        String action = "Order amended";
+        if(order == null) {
+            order = this.sendLimitOrder(size, buying, tickPrice);
+            action = "Order made";
+        }
+        if(!order.accepted) {
+            action = "Order rejected";
+        }
+        totalRequested += size;
+        totalFilled += order.numFilled;
         simulatorLogger.write(
-            "Order made, order ID: " + order.orderID +
+            action + ", order ID: " + order.orderID +
                     ", requested " + size +
                     ", filled " + order.numFilled +
                     ", ordered: " + (size - order.numFilled) +
@@ -145,22 +229,20 @@ class SimulatorClient extends Client implements Runnable {
                     ", average price: " + order.getAveragePrice(exchange.tickSize)
         );
 
-        // We cancel an order if there are too many
-        if(orderPositions.keySet().size() > 5) {
-            synchronized (exchange.getLock()) {
-                List<UUID> keysAsArray = new ArrayList<UUID>(orderPositions.keySet());
-                Random r = new Random();
-                UUID orderIDToCancel = keysAsArray.get(r.nextInt(keysAsArray.size()));
-                int orderSize = Math.abs(orderPositions.get(orderIDToCancel));
-                if(cancelOrder(orderIDToCancel, orderSize)) {
-                    simulatorLogger.write(
-                            "Order cancelled, order ID: " + orderIDToCancel.toString() + ", order size: " + orderSize
-                    );
-                } else {
-                    simulatorLogger.write(
-                            "Unable to cancel order, order ID: " + orderIDToCancel.toString() + ", order size: " + orderSize
-                    );
-                }
+        // We cancel an order if there are too many. The order may be filled between reading
+        // its size and cancelling, in which case the cancel is refused.
+        List<UUID> keysAsArray = getOpenOrderIDs();
+        if(keysAsArray.size() > 5) {
+            UUID orderIDToCancel = keysAsArray.get(rand.nextInt(keysAsArray.size()));
+            int orderSize = Math.abs(getOrderPosition(orderIDToCancel));
+            if(cancelOrder(orderIDToCancel, orderSize)) {
+                simulatorLogger.write(
+                        "Order cancelled, order ID: " + orderIDToCancel.toString() + ", order size: " + orderSize
+                );
+            } else {
+                simulatorLogger.write(
+                        "Unable to cancel order, order ID: " + orderIDToCancel.toString() + ", order size: " + orderSize
+                );
             }
         }
     }
@@ -3,6 +3,15 @@ package com.company;
 import java.util.Random;
 
 public class DiscreteRandom extends Random {
+    public DiscreteRandom() {
+        super();
+    }
+
+    public DiscreteRandom(long seed) {
+        // Seeded generators let independent simulations be replayed exactly
+        super(seed);
+    }
+
     int nextNormalInteger(int mean, double sd, int spread) {
         // Get a random 'normally distributed' integer, bounded in [mean-spread/2, mean+spread/2]
         int nextInteger;
@@ -8,18 +8,28 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 class OrderInformation {
     final UUID orderID;
     final int numFilled;
     final int totalPrice;
     final int direction;
+    // False if the exchange rejected the order, e.g. for breaking a risk limit
+    final boolean accepted;
 
     public OrderInformation(UUID orderID, int numFilled, int totalPrice, int direction) {
+        this(orderID, numFilled, totalPrice, direction, true);
+    }
+
+    public OrderInformation(UUID orderID, int numFilled, int totalPrice, int direction, boolean accepted) {
         this.orderID = orderID;
         this.numFilled = numFilled;
         this.totalPrice = totalPrice;
         this.direction = direction;
+        this.accepted = accepted;
     }
 
     BigDecimal getAveragePrice(BigDecimal tickSize) {
@@ -57,12 +67,53 @@ public class Exchange {
     final BigDecimal tickSize = new BigDecimal("0.0001");
     SwapPricer swapPricer;
 
-    private HashMap<UUID, Client> registeredClients;
-    private HashMap<UUID, Integer> orderPrices;
-    private HashMap<UUID, Integer> orderPositions;
+    private ConcurrentHashMap<UUID, Client> registeredClients;
+    private ConcurrentHashMap<UUID, Integer> orderPrices;
+    private ConcurrentHashMap<UUID, Integer> orderPositions;
 
-    private final Object lock = new Object();
+    // Anything that matches orders or moves the best prices holds the write lock. With lock
+    // striping enabled, orders that rest without matching or moving the best prices, cancels
+    // that leave their level non-empty, and depth copies hold the read lock plus the lock of
+    // each level's stripe they touch.
+    private final ReentrantReadWriteLock bookLock = new ReentrantReadWriteLock();
+    // null unless lock striping is enabled
+    private Object[] levelLocks;
     LogWriter exchangeLogger;
+    // Source of client and order IDs. When null, IDs are random UUIDs.
+    private Random idGenerator;
+    // Receives fills and top of book changes, when attached
+    private TradeAnalytics analytics;
+    // Receives every execution and order lifecycle event, when attached
+    private TradeHistory history;
+    // Open quantity, positions and limits of every client
+    final RiskLedger riskLedger = new RiskLedger();
+    // When set, an order cancels any of its client's own resting orders it would trade with
+    private volatile boolean selfTradePrevention = false;
+
+    // Quantity resting at each price, signed by direction and absolute, kept up to date as
+    // orders are added, filled and cancelled
+    private int[] signedDepth;
+    private int[] sizeDepth;
+    // Prices with a non-zero quantity. Every bid is below every ask, so the bids are the set
+    // bits up to bestBid and the asks are the set bits from bestAsk. Under the read lock it is
+    // only written, while synchronized on it.
+    private BitSet occupiedLevels;
+    // Best resting prices, -1 when there are no bids and maxPrice when there are no asks
+    private int bestBid;
+    private int bestAsk;
+    // Top of book last sent to analytics, so that unchanged quotes are not republished
+    private int publishedBid = -2;
+    private int publishedAsk = -2;
+
+    // In batch mode, new orders are only pushed onto intake, under the read lock. Holders of
+    // the write lock move them into pendingOrders (in arrival order) before looking at the
+    // batch, and they wait there until runAuction.
+    private ConcurrentLinkedQueue<PendingOrder> intake;
+    private boolean batchMode = false;
+    private boolean proRataAllocation = false;
+    private LinkedHashMap<UUID, PendingOrder> pendingOrders;
+    private long pendingSequence = 0;
+    BatchAuctioneer auctioneer;
 
     public Exchange(int maxTicks, int threadWait, Path logDir) {
         initExchange(maxTicks, logDir);
@@ -104,6 +155,24 @@ public class Exchange {
         }
     }
 
+    public Exchange(
+        int maxTicks,
+        Path logDir,
+        int meanBondPrice,
+        int meanAssetSwapSpreadPrice,
+        int maxStepSize,
+        double sd,
+        long seed
+    ) {
+        // A seeded exchange generates the same IDs and swap prices on every run, so that a
+        // simulation driven from a single thread can be replayed exactly. The swap pricer
+        // thread is never started; the caller steps the price itself.
+        this(maxTicks, -1, logDir, meanBondPrice, meanAssetSwapSpreadPrice, maxStepSize, sd);
+        Random seedGenerator = new Random(seed);
+        idGenerator = new Random(seedGenerator.nextLong());
+        swapPricer.rand = new DiscreteRandom(seedGenerator.nextLong());
+    }
+
     @SuppressWarnings("unchecked")
     private void initExchange(int maxTicks, Path logDir) {
         maxPrice = maxTicks;
@@ -113,11 +182,20 @@ public class Exchange {
         for(int i = 0; i < maxTicks; i ++) {
             orderBook[i] = new LinkedList<>();
         }
-        orderPositions = new HashMap<>();
-        orderPrices = new HashMap<>();
+        orderPositions = new ConcurrentHashMap<>();
+        orderPrices = new ConcurrentHashMap<>();
+        signedDepth = new int[maxTicks];
+        sizeDepth = new int[maxTicks];
+        occupiedLevels = new BitSet(maxTicks);
+        bestBid = -1;
+        bestAsk = maxTicks;
 
-        registeredClients = new HashMap<>();
+        registeredClients = new ConcurrentHashMap<>();
 
+        if(logDir == null) {
+            exchangeLogger = new LogWriter("exchange");
+            return;
+        }
         try {
             String logFilePath = Paths.get(logDir.toString(), "exchange.txt").toString();
             File exchangeLogFile = new File(logFilePath);
@@ -128,53 +206,314 @@ public class Exchange {
         }
     }
 
-    Object getLock() { return lock; }
+    void enableLockStriping(int numStripes) {
+        // Let passive orders and cancels at different prices proceed in parallel. Levels
+        // share a lock when their prices are equal modulo numStripes. Call before trading.
+        bookLock.writeLock().lock();
+        try {
+            levelLocks = new Object[Math.max(1, Math.min(numStripes, maxPrice))];
+            for(int i = 0; i < levelLocks.length; i ++) {
+                levelLocks[i] = new Object();
+            }
+        } finally {
+            bookLock.writeLock().unlock();
+        }
+    }
+
+    UUID nextID() {
+        if(idGenerator == null) {
+            return UUID.randomUUID();
+        }
+        synchronized(idGenerator) {
+            return new UUID(idGenerator.nextLong(), idGenerator.nextLong());
+        }
+    }
+
+    void enableBatchAuctions(int auctionWait, boolean proRata) {
+        // Switch from continuous matching to periodic call auctions. Orders are queued and
+        // cleared together by runAuction, every auctionWait ms if auctionWait > -1, with the
+        // marginal price level allocated pro-rata or by time. Call before trading.
+        bookLock.writeLock().lock();
+        try {
+            batchMode = true;
+            proRataAllocation = proRata;
+            pendingOrders = new LinkedHashMap<>();
+            intake = new ConcurrentLinkedQueue<>();
+        } finally {
+            bookLock.writeLock().unlock();
+        }
+        if(auctionWait > -1) {
+            auctioneer = new BatchAuctioneer(this, auctionWait);
+            auctioneer.start();
+        }
+    }
+
+    void enableSelfTradePrevention() {
+        // Stop clients trading with themselves. In continuous matching, an incoming order
+        // cancels its client's resting units ahead of it at each level it matches. In batch
+        // mode, runAuction first has each queued order cancel its client's earlier orders it
+        // crosses, resting or queued, so that no clearing price can fill both sides.
+        selfTradePrevention = true;
+    }
+
+    void attachAnalytics(TradeAnalytics tradeAnalytics) {
+        bookLock.writeLock().lock();
+        try {
+            analytics = tradeAnalytics;
+            publishedBid = -2;
+            publishedAsk = -2;
+            publishQuote();
+        } finally {
+            bookLock.writeLock().unlock();
+        }
+    }
+
+    void attachHistory(TradeHistory tradeHistory) {
+        bookLock.writeLock().lock();
+        try {
+            history = tradeHistory;
+        } finally {
+            bookLock.writeLock().unlock();
+        }
+    }
+
+    private void recordHistory(long time, byte type, UUID orderID, UUID clientID, int price, int size) {
+        if(history != null) {
+            history.append(time, type, orderID, clientID, price, size);
+        }
+    }
+
+    int getBestBid() {
+        bookLock.readLock().lock();
+        try {
+            return bestBid;
+        } finally {
+            bookLock.readLock().unlock();
+        }
+    }
+
+    int getBestAsk() {
+        bookLock.readLock().lock();
+        try {
+            return bestAsk;
+        } finally {
+            bookLock.readLock().unlock();
+        }
+    }
+
+    private void updateDepth(int price, int size, int direction) {
+        // Record size units being added (size > 0) or removed (size < 0) at price
+        if(size == 0) {
+            return;
+        }
+        signedDepth[price] += size * direction;
+        sizeDepth[price] += size;
+        if(sizeDepth[price] > 0) {
+            // Only write shared state when it changes, as passive orders under the read lock
+            // come through here too
+            if(sizeDepth[price] == size) {
+                synchronized(occupiedLevels) {
+                    occupiedLevels.set(price);
+                }
+            }
+            if(direction == 1 && price > bestBid) {
+                bestBid = price;
+            } else if(direction == -1 && price < bestAsk) {
+                bestAsk = price;
+            }
+            return;
+        }
+
+        // The level is now empty, so move the best price inwards if it was the best
+        occupiedLevels.clear(price);
+        if(price == bestBid) {
+            bestBid = occupiedLevels.previousSetBit(price);
+        }
+        if(price == bestAsk) {
+            int nextAsk = occupiedLevels.nextSetBit(price);
+            bestAsk = nextAsk == -1 ? maxPrice : nextAsk;
+        }
+    }
+
+    private void publishQuote() {
+        if(analytics != null && (bestBid != publishedBid || bestAsk != publishedAsk)) {
+            publishedBid = bestBid;
+            publishedAsk = bestAsk;
+            analytics.publish(new QuoteEvent(System.currentTimeMillis(), bestBid, bestAsk, maxPrice));
+        }
+    }
 
     void registerClient(UUID clientID, Client client) {
         // Register a client with the exchange, if not already existing
         if(!registeredClients.containsKey(clientID)) {
             registeredClients.put(clientID, client);
+            riskLedger.getAccount(clientID);
         }
     }
 
     int[] printOrderBook() {
-        int[] intOrderBook = new int[maxPrice];
-        Arrays.fill(intOrderBook, 0);
-        for(int i = 0; i < maxPrice; i ++) {
-            for(PurchaseInformation trade: orderBook[i]) {
-                intOrderBook[i] += trade.direction;
+        // Copy of the quantity at each price, positive for bids and negative for asks
+        return copyDepth(signedDepth, 0, maxPrice - 1);
+    }
+
+    int[] printSizes() {
+        // Copy of the absolute quantity at each price
+        return copyDepth(sizeDepth, 0, maxPrice - 1);
+    }
+
+    private int[] copyDepth(int[] depth, int from, int to) {
+        // With lock striping, only matching is held off, and each stripe's levels are copied
+        // under that stripe's lock. Passive orders and cancels each change a single level, so
+        // every level in the copy is one that level really had, though levels in different
+        // stripes may be read either side of such a change.
+        if(levelLocks == null) {
+            bookLock.writeLock().lock();
+            try {
+                return Arrays.copyOfRange(depth, from, to + 1);
+            } finally {
+                bookLock.writeLock().unlock();
+            }
+        }
+        int[] copy = new int[to - from + 1];
+        bookLock.readLock().lock();
+        try {
+            for(int stripe = 0; stripe < levelLocks.length; stripe ++) {
+                int first = from + Math.floorMod(stripe - from, levelLocks.length);
+                synchronized(levelLocks[stripe]) {
+                    for(int price = first; price <= to; price += levelLocks.length) {
+                        copy[price - from] = depth[price];
+                    }
+                }
             }
+        } finally {
+            bookLock.readLock().unlock();
         }
-        return intOrderBook;
+        return copy;
     }
 
-    int[] printSizes() {
-        int[] intOrderBook = new int[maxPrice];
-        Arrays.fill(intOrderBook, 0);
-        for(int i = 0; i < maxPrice; i ++) {
-            intOrderBook[i] = orderBook[i].size();
+    int[] getDepth(int fromPrice, int toPrice) {
+        // Signed quantities at prices fromPrice to toPrice inclusive, clamped to the book
+        int from = Math.max(fromPrice, 0);
+        int to = Math.min(toPrice, maxPrice - 1);
+        if(from > to) {
+            return new int[0];
+        }
+        return copyDepth(signedDepth, from, to);
+    }
+
+    int[][] getTopLevels(int numLevels, boolean bids) {
+        // Up to numLevels non-empty levels on one side, best first, as {price, size} pairs
+        List<int[]> levels = new ArrayList<>();
+        bookLock.writeLock().lock();
+        try {
+            int price = bids ? bestBid : (bestAsk == maxPrice ? -1 : bestAsk);
+            while(price > -1 && levels.size() < numLevels) {
+                levels.add(new int[]{price, sizeDepth[price]});
+                price = bids ? occupiedLevels.previousSetBit(price - 1) : occupiedLevels.nextSetBit(price + 1);
+            }
+        } finally {
+            bookLock.writeLock().unlock();
         }
-        return intOrderBook;
+        return levels.toArray(new int[0][]);
     }
 
-    private void completeTrades(int price, int size) {
+    private void completeTrades(int price, int size, UUID aggressorOrderID, UUID aggressorClientID) {
         if(orderBook[price].size() < size) {
             exchangeLogger.write("Unable to complete " + size + " orders at price " + price);
             return;
         }
 
+        // Consecutive units of the same resting order are reported as one fill
+        long time = System.currentTimeMillis();
+        PurchaseInformation fillStart = null;
+        int fillSize = 0;
         for(int i = 0; i < size; i ++) {
             PurchaseInformation trade = orderBook[price].removeFirst();
             orderPositions.put(trade.orderID, orderPositions.get(trade.orderID) - trade.direction);
             Client client = registeredClients.get(trade.clientID);
             client.completeTrade(trade);
             exchangeLogger.write("Trade completed, " + trade.toString());
+
+            if(fillStart != null && !fillStart.orderID.equals(trade.orderID)) {
+                reportPassiveFill(time, price, fillSize, aggressorClientID, fillStart);
+                fillSize = 0;
+            }
+            if(fillSize == 0) {
+                fillStart = trade;
+            }
+            fillSize += 1;
+        }
+        if(fillStart != null) {
+            reportPassiveFill(time, price, fillSize, aggressorClientID, fillStart);
+        }
+        recordHistory(time, HistoryEvent.FILL, aggressorOrderID, aggressorClientID, price, -size * fillStart.direction);
+        updateDepth(price, -size, signedDepth[price] > 0 ? 1 : -1);
+    }
+
+    private void reportPassiveFill(long time, int price, int size, UUID aggressorClientID, PurchaseInformation trade) {
+        riskLedger.fill(trade.clientID, trade.direction, size, (long) price * size);
+        recordHistory(time, HistoryEvent.FILL, trade.orderID, trade.clientID, price, size * trade.direction);
+        if(analytics != null) {
+            analytics.publish(new FillEvent(time, price, size, aggressorClientID, trade.clientID, -trade.direction));
+        }
+    }
+
+    private void cancelOwnOrdersAhead(int price, int size, UUID clientID) {
+        // Self-trade prevention: cancel the client's resting units at price that sit ahead of
+        // the first size units from other clients, so that none of them would be traded with
+        int othersAhead = 0;
+        int cancelled = 0;
+        int levelDirection = signedDepth[price] > 0 ? 1 : -1;
+        for(Iterator<PurchaseInformation> iterator = orderBook[price].iterator(); iterator.hasNext() && othersAhead < size;) {
+            PurchaseInformation trade = iterator.next();
+            if(!trade.clientID.equals(clientID)) {
+                othersAhead += 1;
+                continue;
+            }
+            iterator.remove();
+            orderPositions.put(trade.orderID, orderPositions.get(trade.orderID) - trade.direction);
+            registeredClients.get(trade.clientID).completeTrade(trade);
+            exchangeLogger.write("Trade cancelled to prevent self trade, " + trade.toString());
+            recordHistory(System.currentTimeMillis(), HistoryEvent.CANCEL, trade.orderID, clientID, price, levelDirection);
+            cancelled += 1;
+        }
+        if(cancelled > 0) {
+            riskLedger.release(clientID, levelDirection, cancelled);
+            updateDepth(price, -cancelled, levelDirection);
+        }
+    }
+
+    private void cancelSelfCrossingOrders() {
+        // Self-trade prevention for batch auctions. Each queued order, in arrival order,
+        // cancels its client's earlier orders on the other side that it crosses, whether they
+        // are resting or queued. A client's buys are then all below its sells, so no single
+        // clearing price can fill both sides. Must hold the write lock.
+        for(PendingOrder order: pendingOrders.values()) {
+            if(order.units.isEmpty()) {
+                continue;
+            }
+            for(UUID otherID: registeredClients.get(order.clientID).getOpenOrderIDs()) {
+                Integer position = orderPositions.get(otherID);
+                Integer price = orderPrices.get(otherID);
+                if(position == null || price == null || position * order.direction >= 0) {
+                    continue;
+                }
+                PendingOrder other = pendingOrders.get(otherID);
+                if(other != null && other.sequence > order.sequence) {
+                    continue;
+                }
+                if((price - order.price) * order.direction <= 0) {
+                    exchangeLogger.write("Cancelling order ID: " + otherID + " to prevent self trade with order ID: " + order.orderID);
+                    cancelAtLevel(order.clientID, otherID, Math.abs(position), true);
+                }
+            }
         }
     }
 
     private void startTrades(int price, int size, UUID orderID, UUID clientID, int direction) {
         orderPositions.put(orderID, size * direction);
         orderPrices.put(orderID, price);
+        updateDepth(price, size, direction);
         for(int i = 0; i < size; i ++) {
             PurchaseInformation trade = new PurchaseInformation(orderID, clientID, direction);
             orderBook[price].addLast(trade);
@@ -184,33 +523,182 @@ public class Exchange {
         }
     }
 
+    private Object levelLock(int price) {
+        return levelLocks[price % levelLocks.length];
+    }
+
+    private boolean restsWithoutMatching(int price, int direction) {
+        // True if an order at price can be added without crossing the book or moving the best
+        // prices: it joins a level of its own direction, including the best one, or opens a
+        // new level behind the best price. Must hold at least the read lock.
+        if(sizeDepth[price] == 0) {
+            return direction == 1 ? price < bestBid : direction == -1 && price > bestAsk;
+        }
+        return direction == 1 ? price <= bestBid : direction == -1 && price >= bestAsk;
+    }
+
+    private boolean isBehindBest(int price, int direction) {
+        // True if price already holds orders of this direction and is not the best price,
+        // so adding to or partially cancelling at it cannot cross the book or move the
+        // best prices. Must hold at least the read lock.
+        if(sizeDepth[price] == 0) {
+            return false;
+        }
+        return direction == 1 ? price < bestBid : direction == -1 && price > bestAsk;
+    }
+
     boolean cancelOrder(UUID clientID, UUID orderID, int size) {
         // Handle request to cancel order under orderID
-        synchronized(lock) {
-            if(!orderPrices.containsKey(orderID) || Math.abs(orderPositions.get(orderID)) < size) {
-                return false;
-            } else {
-                exchangeLogger.write("Cancelling order ID: " + orderID + ", client ID: " + clientID + ", size: " + size + ", available: " + Math.abs(orderPositions.get(orderID)));
-                int leftToFill = size;
-                int price = orderPrices.get(orderID);
-                int direction = (int) Math.signum(orderPositions.get(orderID));
-                orderPositions.put(orderID, orderPositions.get(orderID) - direction * size);
-                for(Iterator<PurchaseInformation> iterator = orderBook[price].iterator(); iterator.hasNext();) {
-                    if(leftToFill == 0) {
-                        break;
+        if(levelLocks != null && !batchMode) {
+            // A cancel that leaves its level non-empty only needs that level
+            bookLock.readLock().lock();
+            try {
+                Integer price = orderPrices.get(orderID);
+                Integer position = orderPositions.get(orderID);
+                if(price == null || position == null) {
+                    return false;
+                }
+                synchronized(levelLock(price)) {
+                    if(isBehindBest(price, (int) Math.signum(position)) && sizeDepth[price] > size) {
+                        return cancelAtLevel(clientID, orderID, size, true);
                     }
+                }
+            } finally {
+                bookLock.readLock().unlock();
+            }
+        }
 
-                    PurchaseInformation trade = iterator.next();
-                    if(trade.orderID == orderID && trade.clientID == clientID) {
-                        Client client = registeredClients.get(trade.clientID);
-                        client.completeTrade(trade);
-                        exchangeLogger.write("Trade cancelled, " + trade.toString());
-                        iterator.remove();
-                        leftToFill -= 1;
-                    }
+        bookLock.writeLock().lock();
+        try {
+            drainIntake();
+            return cancelAtLevel(clientID, orderID, size, true);
+        } finally {
+            bookLock.writeLock().unlock();
+        }
+    }
+
+    private boolean cancelAtLevel(UUID clientID, UUID orderID, int size, boolean releaseRisk) {
+        // Must hold the write lock, or the read lock and the order's level lock. Unless
+        // releaseRisk is false, the cancelled quantity is released from the risk ledger and
+        // recorded in the trade history; otherwise the caller is replacing the order.
+        if(!orderPrices.containsKey(orderID) || Math.abs(orderPositions.get(orderID)) < size) {
+            return false;
+        } else {
+            exchangeLogger.write("Cancelling order ID: " + orderID + ", client ID: " + clientID + ", size: " + size + ", available: " + Math.abs(orderPositions.get(orderID)));
+            int leftToFill = size;
+            int price = orderPrices.get(orderID);
+            int direction = (int) Math.signum(orderPositions.get(orderID));
+            orderPositions.put(orderID, orderPositions.get(orderID) - direction * size);
+            if(batchMode && pendingOrders.containsKey(orderID)) {
+                // The order has not reached the book yet
+                List<PurchaseInformation> units = pendingOrders.get(orderID).units;
+                for(int i = 0; i < size; i ++) {
+                    PurchaseInformation trade = units.remove(units.size() - 1);
+                    registeredClients.get(trade.clientID).completeTrade(trade);
+                    exchangeLogger.write("Trade cancelled, " + trade.toString());
+                }
+                if(releaseRisk) {
+                    riskLedger.release(clientID, direction, size);
+                    recordHistory(System.currentTimeMillis(), HistoryEvent.CANCEL, orderID, clientID, price, size * direction);
                 }
                 return true;
             }
+            for(Iterator<PurchaseInformation> iterator = orderBook[price].iterator(); iterator.hasNext();) {
+                if(leftToFill == 0) {
+                    break;
+                }
+
+                PurchaseInformation trade = iterator.next();
+                if(trade.orderID.equals(orderID) && trade.clientID.equals(clientID)) {
+                    Client client = registeredClients.get(trade.clientID);
+                    client.completeTrade(trade);
+                    exchangeLogger.write("Trade cancelled, " + trade.toString());
+                    iterator.remove();
+                    leftToFill -= 1;
+                }
+            }
+            updateDepth(price, leftToFill - size, direction);
+            if(releaseRisk) {
+                riskLedger.release(clientID, direction, size - leftToFill);
+                recordHistory(System.currentTimeMillis(), HistoryEvent.CANCEL, orderID, clientID, price, (size - leftToFill) * direction);
+            }
+            publishQuote();
+            return true;
+        }
+    }
+
+    OrderInformation amendOrder(UUID clientID, UUID orderID, int tickPrice, int size) {
+        // Change the price and/or open size of a resting order in one step, keeping its ID.
+        // Reducing the size at the same price keeps the order's place in the queue. Anything
+        // else moves it to the back of the new level, matching first if it now crosses.
+        // Returns null if the client has no open quantity under orderID. An amend to a price
+        // outside the book or a negative size is rejected and leaves the order untouched.
+        Client client = registeredClients.get(clientID);
+        if(client == null || client.getOrderPosition(orderID) == 0) {
+            return null;
+        }
+        if(tickPrice < 0 || tickPrice >= maxPrice || size < 0) {
+            // Rejected before anything is changed, so the original order stands
+            int direction = (int) Math.signum(client.getOrderPosition(orderID));
+            exchangeLogger.write("Amend rejected, order ID: " + orderID + ", client ID: " + clientID + ", price: " + tickPrice + ", size: " + size);
+            recordHistory(System.currentTimeMillis(), HistoryEvent.ORDER_REJECTED, orderID, clientID, tickPrice, size * direction);
+            return new OrderInformation(orderID, 0, 0, direction, false);
+        }
+        if(levelLocks != null && !batchMode) {
+            // A reduction that leaves its level non-empty only needs that level
+            bookLock.readLock().lock();
+            try {
+                Integer price = orderPrices.get(orderID);
+                if(price != null && price == tickPrice) {
+                    synchronized(levelLock(price)) {
+                        int position = orderPositions.get(orderID);
+                        int reduction = Math.abs(position) - size;
+                        if(reduction >= 0 && isBehindBest(price, (int) Math.signum(position)) && sizeDepth[price] > reduction) {
+                            recordHistory(System.currentTimeMillis(), HistoryEvent.AMEND, orderID, clientID, tickPrice, size * (int) Math.signum(position));
+                            cancelAtLevel(clientID, orderID, reduction, true);
+                            return new OrderInformation(orderID, 0, 0, (int) Math.signum(position));
+                        }
+                    }
+                }
+            } finally {
+                bookLock.readLock().unlock();
+            }
+        }
+
+        bookLock.writeLock().lock();
+        try {
+            drainIntake();
+            Integer price = orderPrices.get(orderID);
+            int position = orderPositions.getOrDefault(orderID, 0);
+            if(price == null || position == 0) {
+                return null;
+            }
+            int direction = (int) Math.signum(position);
+            int openSize = Math.abs(position);
+            exchangeLogger.write("Amending order ID: " + orderID + ", client ID: " + clientID + ", new price: " + tickPrice + ", new size: " + size);
+            if(price == tickPrice && size <= openSize) {
+                recordHistory(System.currentTimeMillis(), HistoryEvent.AMEND, orderID, clientID, tickPrice, size * direction);
+                cancelAtLevel(clientID, orderID, openSize - size, true);
+                return new OrderInformation(orderID, 0, 0, direction);
+            }
+
+            // The amended order is checked against the risk limits in place of the original
+            if(!riskLedger.replace(clientID, direction, openSize, size)) {
+                exchangeLogger.write("Amend rejected by risk limits, order ID: " + orderID + ", client ID: " + clientID);
+                recordHistory(System.currentTimeMillis(), HistoryEvent.ORDER_REJECTED, orderID, clientID, tickPrice, size * direction);
+                return new OrderInformation(orderID, 0, 0, direction, false);
+            }
+            recordHistory(System.currentTimeMillis(), HistoryEvent.AMEND, orderID, clientID, tickPrice, size * direction);
+            cancelAtLevel(clientID, orderID, openSize, false);
+            if(batchMode) {
+                // Requeue at the back of the current batch
+                pendingOrders.remove(orderID);
+                queueOrder(tickPrice, size, orderID, clientID, direction);
+                return new OrderInformation(orderID, 0, 0, direction);
+            }
+            return matchOrder(clientID, orderID, size, direction, tickPrice, false);
+        } finally {
+            bookLock.writeLock().unlock();
         }
     }
 
@@ -223,41 +711,377 @@ public class Exchange {
         //  tickPrice: price to set limit at
         //  dryRun: if true, orders are executed, else only information is returned and no orders executed
 
-        int totalPrice = 0;
-        int leftToFill = size;
-        UUID orderID = UUID.randomUUID();
+        UUID orderID = nextID();
 
         // direction allows us to take advantage of the symmetry of bid and ask
         int direction = buying ? 1 : -1;
-        synchronized(lock) {
-            for(int i = buying ? 0 : maxPrice - 1; i != tickPrice + direction; i += direction) {
-                // Check to see if there are orders opposite of my direction
-                PurchaseInformation firstOrder = orderBook[i].peekFirst();
-                if(firstOrder == null || firstOrder.direction == direction) {
+        if(!dryRun && (tickPrice < 0 || tickPrice >= maxPrice || size < 0)) {
+            // Checked before reserving, so a bad order never holds any of the client's limits
+            exchangeLogger.write("Order rejected, order ID: " + orderID + ", client ID: " + clientID + ", price: " + tickPrice + ", size: " + size);
+            recordHistory(System.currentTimeMillis(), HistoryEvent.ORDER_REJECTED, orderID, clientID, tickPrice, size * direction);
+            return new OrderInformation(orderID, 0, 0, direction, false);
+        }
+        if(!dryRun && !riskLedger.reserve(clientID, direction, size)) {
+            exchangeLogger.write("Order rejected by risk limits, order ID: " + orderID + ", client ID: " + clientID + ", size: " + size);
+            recordHistory(System.currentTimeMillis(), HistoryEvent.ORDER_REJECTED, orderID, clientID, tickPrice, size * direction);
+            return new OrderInformation(orderID, 0, 0, direction, false);
+        }
+        if(!dryRun) {
+            recordHistory(System.currentTimeMillis(), HistoryEvent.ORDER_ADDED, orderID, clientID, tickPrice, size * direction);
+        }
+        if(batchMode && !dryRun) {
+            // Nothing is filled until the next auction, so the order only needs to be queued.
+            // The read lock keeps a drain from seeing the order half added.
+            bookLock.readLock().lock();
+            try {
+                intake.add(startPending(tickPrice, size, orderID, clientID, direction));
+            } finally {
+                bookLock.readLock().unlock();
+            }
+            return new OrderInformation(orderID, 0, 0, direction);
+        }
+        if(levelLocks != null && !dryRun && size > 0) {
+            // An order that rests without matching only needs its level
+            bookLock.readLock().lock();
+            try {
+                synchronized(levelLock(tickPrice)) {
+                    if(restsWithoutMatching(tickPrice, direction)) {
+                        startTrades(tickPrice, size, orderID, clientID, direction);
+                        return new OrderInformation(orderID, 0, 0, direction);
+                    }
+                }
+            } finally {
+                bookLock.readLock().unlock();
+            }
+        }
+
+        bookLock.writeLock().lock();
+        try {
+            return matchOrder(clientID, orderID, size, direction, tickPrice, dryRun);
+        } finally {
+            bookLock.writeLock().unlock();
+        }
+    }
+
+    private OrderInformation matchOrder(UUID clientID, UUID orderID, int size, int direction, int tickPrice, boolean dryRun) {
+        // Fill what we can against the book and rest the remainder. Must hold the write lock.
+        int totalPrice = 0;
+        int leftToFill = size;
+        boolean buying = direction == 1;
+        // Only levels from the best opposite price up to the limit can match
+        int start = buying ? bestAsk : bestBid;
+        for(int i = start; buying ? i <= tickPrice : i >= tickPrice; i += direction) {
+            // Check to see if there are orders opposite of my direction
+            PurchaseInformation firstOrder = orderBook[i].peekFirst();
+            if(firstOrder == null || firstOrder.direction == direction) {
+                continue;
+            }
+            // The ledger tells us in O(1) whether the client has anything on the other side
+            if(!dryRun && selfTradePrevention && riskLedger.getOpenQuantity(clientID, -direction) > 0) {
+                cancelOwnOrdersAhead(i, leftToFill, clientID);
+            }
+
+            int numAtPrice = orderBook[i].size();
+            int maxTradeableAtPrice = Math.min(leftToFill, numAtPrice);
+            if(maxTradeableAtPrice > 0) {
+                totalPrice += maxTradeableAtPrice * i;
+                leftToFill -= maxTradeableAtPrice;
+
+                if(!dryRun) {
+                    completeTrades(i, maxTradeableAtPrice, orderID, clientID);
+                }
+            }
+            if(leftToFill == 0) {
+                break;
+            }
+        }
+
+        if(!dryRun) {
+            riskLedger.fill(clientID, direction, size - leftToFill, totalPrice);
+            // Add any left over order to the order book
+            startTrades(tickPrice, leftToFill, orderID, clientID, direction);
+            publishQuote();
+        }
+
+        return new OrderInformation(orderID, size - leftToFill, totalPrice, direction);
+    }
+
+    private PendingOrder startPending(int price, int size, UUID orderID, UUID clientID, int direction) {
+        // Record an order for the next batch with the exchange and its client, in O(1). Its
+        // units are only created once it is drained into pendingOrders.
+        if(price < 0 || price >= maxPrice) {
+            throw new IllegalArgumentException("Price " + price + " is outside the order book");
+        }
+        orderPositions.put(orderID, size * direction);
+        orderPrices.put(orderID, price);
+        registeredClients.get(clientID).startOrder(orderID, size * direction);
+        return new PendingOrder(orderID, clientID, price, direction, size);
+    }
+
+    private void queueOrder(int price, int size, UUID orderID, UUID clientID, int direction) {
+        // Must hold the write lock
+        addPending(startPending(price, size, orderID, clientID, direction));
+    }
+
+    private void drainIntake() {
+        // Must hold the write lock
+        if(!batchMode) {
+            return;
+        }
+        PendingOrder order;
+        while((order = intake.poll()) != null) {
+            addPending(order);
+        }
+    }
+
+    private void addPending(PendingOrder order) {
+        order.sequence = pendingSequence ++;
+        for(int i = 0; i < order.size; i ++) {
+            order.units.add(new PurchaseInformation(order.orderID, order.clientID, order.direction));
+        }
+        exchangeLogger.write("Order queued, order ID: " + order.orderID + ", client ID: " + order.clientID +
+                ", price: " + order.price + ", size: " + order.size * order.direction);
+        pendingOrders.put(order.orderID, order);
+    }
+
+    AuctionInformation runAuction() {
+        // Clear all queued orders against each other and the book at a single price, the one
+        // that maximises traded volume (then minimises the imbalance, then is lowest).
+        // Whatever is left over rests in the book, which is uncrossed afterwards.
+        bookLock.writeLock().lock();
+        try {
+            drainIntake();
+            if(!batchMode || pendingOrders.isEmpty()) {
+                return new AuctionInformation(-1, 0);
+            }
+            if(selfTradePrevention) {
+                cancelSelfCrossingOrders();
+            }
+
+            // Only prices between the lowest sell and the highest buy can trade
+            int low = bestAsk;
+            int high = bestBid;
+            HashMap<Integer, List<PendingOrder>> pendingByPrice = new HashMap<>();
+            for(PendingOrder order: pendingOrders.values()) {
+                if(order.units.isEmpty()) {
                     continue;
                 }
+                if(order.direction == 1) {
+                    high = Math.max(high, order.price);
+                } else {
+                    low = Math.min(low, order.price);
+                }
+                pendingByPrice.computeIfAbsent(order.price, k -> new ArrayList<>()).add(order);
+            }
+
+            int clearingPrice = -1;
+            int volume = 0;
+            if(low <= high) {
+                // Aggregate supply and demand over [low, high] in one pass each way
+                int[] buyQuantity = new int[high - low + 1];
+                int[] sellQuantity = new int[high - low + 1];
+                for(int price = low; price <= high; price ++) {
+                    if(signedDepth[price] > 0) {
+                        buyQuantity[price - low] += signedDepth[price];
+                    } else {
+                        sellQuantity[price - low] -= signedDepth[price];
+                    }
+                    for(PendingOrder order: pendingByPrice.getOrDefault(price, Collections.emptyList())) {
+                        if(order.direction == 1) {
+                            buyQuantity[price - low] += order.units.size();
+                        } else {
+                            sellQuantity[price - low] += order.units.size();
+                        }
+                    }
+                }
+                int[] demand = new int[buyQuantity.length];
+                int cumulative = 0;
+                for(int i = buyQuantity.length - 1; i >= 0; i --) {
+                    cumulative += buyQuantity[i];
+                    demand[i] = cumulative;
+                }
+                int supply = 0;
+                int bestImbalance = Integer.MAX_VALUE;
+                for(int i = 0; i < sellQuantity.length; i ++) {
+                    supply += sellQuantity[i];
+                    int matched = Math.min(demand[i], supply);
+                    int imbalance = Math.abs(demand[i] - supply);
+                    if(matched > volume || (matched == volume && matched > 0 && imbalance < bestImbalance)) {
+                        volume = matched;
+                        bestImbalance = imbalance;
+                        clearingPrice = low + i;
+                    }
+                }
+            }
+
+            if(volume > 0) {
+                List<PurchaseInformation> buys = allocateAuctionSide(1, high, clearingPrice, volume, pendingByPrice);
+                List<PurchaseInformation> sells = allocateAuctionSide(-1, low, clearingPrice, volume, pendingByPrice);
+                completeAuctionTrades(buys, sells, clearingPrice);
+            }
+
+            // Unfilled orders join the book in arrival order
+            for(PendingOrder order: pendingOrders.values()) {
+                if(!order.units.isEmpty()) {
+                    orderBook[order.price].addAll(order.units);
+                    updateDepth(order.price, order.units.size(), order.direction);
+                }
+            }
+            pendingOrders.clear();
+            pendingSequence = 0;
+            publishQuote();
+            exchangeLogger.write("Auction cleared " + volume + " at price " + clearingPrice);
+            return new AuctionInformation(clearingPrice, volume);
+        } finally {
+            bookLock.writeLock().unlock();
+        }
+    }
 
-                int numAtPrice = orderBook[i].size();
-                int maxTradeableAtPrice = Math.min(leftToFill, numAtPrice);
-                if(maxTradeableAtPrice > 0) {
-                    totalPrice += maxTradeableAtPrice * i;
-                    leftToFill -= maxTradeableAtPrice;
+    private List<PurchaseInformation> allocateAuctionSide(
+            int direction,
+            int outerPrice,
+            int clearingPrice,
+            int volume,
+            HashMap<Integer, List<PendingOrder>> pendingByPrice
+    ) {
+        // Take volume units from one side, most aggressive price first. Within a level, book
+        // orders come before queued ones and earlier orders before later ones. A level that
+        // cannot be filled completely is split by time or pro-rata. Returns the units taken.
+        List<PurchaseInformation> filled = new ArrayList<>(volume);
+        int remaining = volume;
+        for(int price = outerPrice; remaining > 0; price -= direction) {
+            List<PendingOrder> pending = new ArrayList<>();
+            for(PendingOrder order: pendingByPrice.getOrDefault(price, Collections.emptyList())) {
+                if(order.direction == direction && !order.units.isEmpty()) {
+                    pending.add(order);
+                }
+            }
+            boolean bookOnSide = signedDepth[price] * direction > 0;
+            if(!bookOnSide && pending.isEmpty()) {
+                continue;
+            }
 
-                    if(!dryRun) {
-                        completeTrades(i, maxTradeableAtPrice);
+            // Size of each order at this level, in time order
+            LinkedHashMap<UUID, Integer> orderSizes = new LinkedHashMap<>();
+            if(bookOnSide) {
+                for(PurchaseInformation trade: orderBook[price]) {
+                    orderSizes.merge(trade.orderID, 1, Integer::sum);
+                }
+            }
+            for(PendingOrder order: pending) {
+                orderSizes.put(order.orderID, order.units.size());
+            }
+            int levelSize = 0;
+            for(int size: orderSizes.values()) {
+                levelSize += size;
+            }
+
+            HashMap<UUID, Integer> quotas = new HashMap<>();
+            if(remaining >= levelSize) {
+                quotas.putAll(orderSizes);
+            } else if(proRataAllocation) {
+                int allocated = 0;
+                for(Map.Entry<UUID, Integer> entry: orderSizes.entrySet()) {
+                    int quota = (int) ((long) remaining * entry.getValue() / levelSize);
+                    quotas.put(entry.getKey(), quota);
+                    allocated += quota;
+                }
+                // Rounding leftovers go one unit at a time to the earliest orders
+                for(Map.Entry<UUID, Integer> entry: orderSizes.entrySet()) {
+                    if(allocated == remaining) {
+                        break;
+                    }
+                    if(quotas.get(entry.getKey()) < entry.getValue()) {
+                        quotas.put(entry.getKey(), quotas.get(entry.getKey()) + 1);
+                        allocated += 1;
                     }
                 }
-                if(leftToFill == 0) {
-                    break;
+            } else {
+                int allocated = 0;
+                for(Map.Entry<UUID, Integer> entry: orderSizes.entrySet()) {
+                    int quota = Math.min(entry.getValue(), remaining - allocated);
+                    quotas.put(entry.getKey(), quota);
+                    allocated += quota;
                 }
             }
 
-            if(!dryRun) {
-                // Add any left over order to the order book
-                startTrades(tickPrice, leftToFill, orderID, clientID, direction);
+            int takenFromBook = 0;
+            if(bookOnSide) {
+                for(Iterator<PurchaseInformation> iterator = orderBook[price].iterator(); iterator.hasNext();) {
+                    PurchaseInformation trade = iterator.next();
+                    int quota = quotas.get(trade.orderID);
+                    if(quota > 0) {
+                        quotas.put(trade.orderID, quota - 1);
+                        iterator.remove();
+                        filled.add(trade);
+                        takenFromBook += 1;
+                    }
+                }
+                updateDepth(price, -takenFromBook, direction);
+            }
+            int taken = takenFromBook;
+            for(PendingOrder order: pending) {
+                int quota = quotas.get(order.orderID);
+                List<PurchaseInformation> units = order.units.subList(0, quota);
+                filled.addAll(units);
+                units.clear();
+                taken += quota;
+            }
+            remaining -= taken;
+            if(price == clearingPrice) {
+                break;
             }
         }
+        return filled;
+    }
 
-        return new OrderInformation(orderID, size - leftToFill, totalPrice, direction);
+    private void completeAuctionTrades(List<PurchaseInformation> buys, List<PurchaseInformation> sells, int clearingPrice) {
+        // The ith buy unit trades with the ith sell unit, and consecutive units of the same
+        // pair of orders are reported as one fill. For analytics, the later of the two orders
+        // is the aggressor, and orders already in the book are the earliest.
+        long time = System.currentTimeMillis();
+        PurchaseInformation fillBuy = null;
+        PurchaseInformation fillSell = null;
+        int fillSize = 0;
+        for(int i = 0; i < buys.size(); i ++) {
+            PurchaseInformation buy = buys.get(i);
+            PurchaseInformation sell = sells.get(i);
+            for(PurchaseInformation trade: new PurchaseInformation[]{buy, sell}) {
+                orderPositions.put(trade.orderID, orderPositions.get(trade.orderID) - trade.direction);
+                riskLedger.fill(trade.clientID, trade.direction, 1, clearingPrice);
+                registeredClients.get(trade.clientID).completeTrade(trade);
+                exchangeLogger.write("Trade completed in auction, " + trade.toString());
+            }
+
+            if(fillBuy != null && (!fillBuy.orderID.equals(buy.orderID) || !fillSell.orderID.equals(sell.orderID))) {
+                publishAuctionFill(time, clearingPrice, fillSize, fillBuy, fillSell);
+                fillSize = 0;
+            }
+            if(fillSize == 0) {
+                fillBuy = buy;
+                fillSell = sell;
+            }
+            fillSize += 1;
+        }
+        if(fillBuy != null) {
+            publishAuctionFill(time, clearingPrice, fillSize, fillBuy, fillSell);
+        }
+    }
+
+    private void publishAuctionFill(long time, int price, int size, PurchaseInformation buy, PurchaseInformation sell) {
+        recordHistory(time, HistoryEvent.FILL, buy.orderID, buy.clientID, price, size);
+        recordHistory(time, HistoryEvent.FILL, sell.orderID, sell.clientID, price, -size);
+        if(analytics == null) {
+            return;
+        }
+        PendingOrder pendingBuy = pendingOrders.get(buy.orderID);
+        PendingOrder pendingSell = pendingOrders.get(sell.orderID);
+        long buySequence = pendingBuy == null ? -1 : pendingBuy.sequence;
+        long sellSequence = pendingSell == null ? -1 : pendingSell.sequence;
+        if(buySequence > sellSequence) {
+            analytics.publish(new FillEvent(time, price, size, buy.clientID, sell.clientID, 1));
+        } else {
+            analytics.publish(new FillEvent(time, price, size, sell.clientID, buy.clientID, -1));
+        }
     }
 }
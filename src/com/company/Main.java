@@ -1,6 +1,8 @@
 package com.company;
 
 import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -13,6 +15,8 @@ public class Main {
         Path workDir = Paths.get(System.getProperty("user.dir"));
         Path logDir = Paths.get(workDir.toString(), "logging");
         Path simulatorDir = Paths.get(logDir.toString(), "simulator");
+        // Kept across sessions, unlike the logs
+        Path historyDir = Paths.get(workDir.toString(), "history");
         prepareLoggingDir(logDir);
         prepareLoggingDir(simulatorDir);
 
@@ -48,6 +52,9 @@ public class Main {
         System.out.println("Max trade size of requestor (1000):\n");
         input = scanner.nextLine();
         int requestorSizeLimit = Integer.parseInt(input.equals("") ? "1000" : input);
+        System.out.println("Batch auction interval /ms, -1 for continuous matching (-1):\n");
+        input = scanner.nextLine();
+        int auctionWait = Integer.parseInt(input.equals("") ? "-1" : input);
 
         // Initialize
         Exchange exchange = new Exchange(
@@ -59,6 +66,21 @@ public class Main {
             maxStepSize,
             standardDeviation
         );
+        if(auctionWait > -1) {
+            exchange.enableBatchAuctions(auctionWait, false);
+        }
+        // One minute of one second bars
+        TradeAnalytics analytics = new TradeAnalytics(1000, 60);
+        exchange.attachAnalytics(analytics);
+        analytics.start();
+        TradeHistory history = null;
+        try {
+            history = new TradeHistory(historyDir);
+            exchange.attachHistory(history);
+        } catch(IOException e) {
+            System.out.println("No trade history available");
+            System.out.println(e.toString());
+        }
         // The clients send in a request between 1 and 20 times the threadWait
         Simulator simulator = new Simulator(
             numSimulators, exchange, simulatorSizeLimit, simulatorClientThreadWait, simulatorDir
@@ -78,6 +100,16 @@ public class Main {
         System.out.println("Press return to end requestor");
         scanner.nextLine();
         client.t.interrupt();
+        if(exchange.auctioneer != null) {
+            exchange.auctioneer.interrupt();
+        }
+        double vwap = analytics.getRollingVWAP();
+        System.out.println("Total volume: " + analytics.getTotalVolume() + ", VWAP over the last minute: " +
+                (Double.isNaN(vwap) ? "none" : exchange.tickSize.multiply(BigDecimal.valueOf(vwap))));
+        analytics.interrupt();
+        if(history != null) {
+            history.close();
+        }
     }
 
     static void prepareLoggingDir(Path logDir) {
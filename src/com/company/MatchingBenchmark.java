@@ -0,0 +1,98 @@
+package com.company;
+
+import java.util.List;
+import java.util.UUID;
+
+
+public class MatchingBenchmark {
+    // Compares order throughput of continuous matching, with and without lock striping,
+    // against batch auctions, with a burst of orders sent from several threads at once.
+    // Orders are either spread around the mid price, so that many of them cross, or passive,
+    // with buys below the mid price and sells above it. Nothing is logged.
+
+    static double measureThroughput(
+            boolean batchMode,
+            boolean striped,
+            boolean passive,
+            int numThreads,
+            int ordersPerThread,
+            int auctionWait
+    ) throws InterruptedException {
+        int maxTicks = 10000;
+        Exchange exchange = new Exchange(maxTicks, -1, null);
+        if(batchMode) {
+            exchange.enableBatchAuctions(auctionWait, false);
+        }
+        if(striped) {
+            exchange.enableLockStriping(64);
+        }
+
+        Thread[] threads = new Thread[numThreads];
+        for(int i = 0; i < numThreads; i ++) {
+            Client client = new Client(exchange);
+            DiscreteRandom rand = new DiscreteRandom(i);
+            threads[i] = new Thread(() -> {
+                for(int j = 0; j < ordersPerThread; j ++) {
+                    boolean buying = rand.nextBoolean();
+                    int tickPrice = rand.nextNormalInteger(maxTicks / 2, 10, 40);
+                    if(passive) {
+                        int distance = Math.abs(tickPrice - maxTicks / 2);
+                        tickPrice = buying ? maxTicks / 2 - 1 - distance : maxTicks / 2 + distance;
+                    }
+                    OrderInformation order = client.sendLimitOrder(rand.nextInt(10) + 1, buying, tickPrice);
+                    // Keep the book from growing without bound. Passive orders never fill, so
+                    // each client keeps at most 20 of them open.
+                    if(passive) {
+                        List<UUID> openOrderIDs = client.getOpenOrderIDs();
+                        if(openOrderIDs.size() > 20) {
+                            UUID orderID = openOrderIDs.get(rand.nextInt(openOrderIDs.size()));
+                            client.cancelOrder(orderID, Math.abs(client.getOrderPosition(orderID)));
+                        }
+                    } else if(j % 4 == 0) {
+                        UUID orderID = order.orderID;
+                        client.cancelOrder(orderID, Math.abs(client.getOrderPosition(orderID)));
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for(Thread thread: threads) {
+            thread.start();
+        }
+        for(Thread thread: threads) {
+            thread.join();
+        }
+        if(batchMode) {
+            exchange.auctioneer.interrupt();
+            exchange.auctioneer.join();
+            // Clear whatever arrived since the last auction
+            exchange.runAuction();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return numThreads * ordersPerThread / seconds;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int ordersPerThread = 50000;
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        for(boolean passive: new boolean[]{false, true}) {
+            for(int numThreads: new int[]{1, 2, 4, 8}) {
+                // Warm up every path before measuring
+                measureThroughput(false, false, passive, numThreads, ordersPerThread / 10, 5);
+                measureThroughput(false, true, passive, numThreads, ordersPerThread / 10, 5);
+                measureThroughput(true, false, passive, numThreads, ordersPerThread / 10, 5);
+                double continuous = measureThroughput(false, false, passive, numThreads, ordersPerThread, 5);
+                double striped = measureThroughput(false, true, passive, numThreads, ordersPerThread, 5);
+                double batch = measureThroughput(true, false, passive, numThreads, ordersPerThread, 5);
+                System.out.println(
+                        (passive ? "Passive" : "Crossing") + " orders" +
+                        ", threads: " + numThreads +
+                        ", continuous: " + Math.round(continuous) + " orders/s" +
+                        ", striped: " + Math.round(striped) + " orders/s" +
+                        ", batch (5ms): " + Math.round(batch) + " orders/s"
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+class SweepParameters {
+    final int maxTicks;
+    final int meanBondPrice;
+    final int meanAssetSwapSpreadPrice;
+    final int maxStepSize;
+    final double sd;
+    final int numSimulators;
+    final int sizeLimit;
+    // Virtual milliseconds between simulator orders (scaled by 1 to 20 as in SimulatorClient.run)
+    final int threadWait;
+    // Virtual milliseconds between swap price updates
+    final int pricerThreadWait;
+    // Virtual milliseconds to simulate for
+    final long duration;
+    final long seed;
+
+    public SweepParameters(
+            int maxTicks,
+            int meanBondPrice,
+            int meanAssetSwapSpreadPrice,
+            int maxStepSize,
+            double sd,
+            int numSimulators,
+            int sizeLimit,
+            int threadWait,
+            int pricerThreadWait,
+            long duration,
+            long seed
+    ) {
+        if(threadWait < 1 || pricerThreadWait < 1) {
+            throw new IllegalArgumentException("Thread waits must be at least 1ms in virtual time");
+        }
+        this.maxTicks = maxTicks;
+        this.meanBondPrice = meanBondPrice;
+        this.meanAssetSwapSpreadPrice = meanAssetSwapSpreadPrice;
+        this.maxStepSize = maxStepSize;
+        this.sd = sd;
+        this.numSimulators = numSimulators;
+        this.sizeLimit = sizeLimit;
+        this.threadWait = threadWait;
+        this.pricerThreadWait = pricerThreadWait;
+        this.duration = duration;
+        this.seed = seed;
+    }
+
+    SweepParameters withSeed(long newSeed) {
+        return new SweepParameters(
+                maxTicks, meanBondPrice, meanAssetSwapSpreadPrice, maxStepSize, sd,
+                numSimulators, sizeLimit, threadWait, pricerThreadWait, duration, newSeed
+        );
+    }
+
+    static String header() {
+        return "seed, maxTicks, meanBondPrice, meanAssetSwapSpreadPrice, maxStepSize, sd, " +
+                "numSimulators, sizeLimit, threadWait, pricerThreadWait, duration";
+    }
+
+    public String toString() {
+        return seed + ", " + maxTicks + ", " + meanBondPrice + ", " + meanAssetSwapSpreadPrice + ", " +
+                maxStepSize + ", " + sd + ", " + numSimulators + ", " + sizeLimit + ", " + threadWait + ", " +
+                pricerThreadWait + ", " + duration;
+    }
+}
+
+
+class SweepResult {
+    final SweepParameters parameters;
+    final long numOrders;
+    final long totalRequested;
+    final long totalFilled;
+    // Mean of (best ask - best bid) in ticks, over samples where both sides were quoted
+    final double meanSpread;
+    // Mean number of resting units in the order book
+    final double meanDepth;
+    final int finalSwapPrice;
+
+    public SweepResult(
+            SweepParameters parameters,
+            long numOrders,
+            long totalRequested,
+            long totalFilled,
+            double meanSpread,
+            double meanDepth,
+            int finalSwapPrice
+    ) {
+        this.parameters = parameters;
+        this.numOrders = numOrders;
+        this.totalRequested = totalRequested;
+        this.totalFilled = totalFilled;
+        this.meanSpread = meanSpread;
+        this.meanDepth = meanDepth;
+        this.finalSwapPrice = finalSwapPrice;
+    }
+
+    double getFillRatio() {
+        if(totalRequested == 0) {
+            return 0;
+        }
+        return (double) totalFilled / totalRequested;
+    }
+
+    static String header() {
+        return SweepParameters.header() + ", numOrders, fillRatio, meanSpread, meanDepth, finalSwapPrice";
+    }
+
+    public String toString() {
+        return parameters + ", " + numOrders + ", " + getFillRatio() + ", " + meanSpread + ", " +
+                meanDepth + ", " + finalSwapPrice;
+    }
+}
+
+
+class SimulationRun {
+    // A single isolated exchange and set of simulator clients, run in virtual time on the
+    // calling thread. Nothing is shared with other runs and nothing is logged, so the
+    // result depends only on the parameters (including the seed).
+    final SweepParameters parameters;
+
+    public SimulationRun(SweepParameters parameters) {
+        this.parameters = parameters;
+    }
+
+    SweepResult run() {
+        SweepParameters p = parameters;
+        // Every random stream in the run is seeded from this one generator, so that no two
+        // streams (e.g. a client's orders and the swap price path) start from the same seed
+        DiscreteRandom seedGenerator = new DiscreteRandom(p.seed);
+        Exchange exchange = new Exchange(
+                p.maxTicks, null, p.meanBondPrice, p.meanAssetSwapSpreadPrice, p.maxStepSize, p.sd, seedGenerator.nextLong()
+        );
+        // threadWait of -1 stops the clients from starting their own threads
+        Simulator simulator = new Simulator(p.numSimulators, exchange, p.sizeLimit, -1, null);
+        for(SimulatorClient client: simulator.clients) {
+            client.rand = new DiscreteRandom(seedGenerator.nextLong());
+        }
+
+        // Every client acts at time 0, as it would when its thread is started. Ties are
+        // broken by client index to keep the ordering deterministic.
+        int numClients = simulator.clients.length;
+        long[] nextActionTime = new long[numClients];
+        PriorityQueue<Integer> schedule = new PriorityQueue<>(
+                Math.max(numClients, 1),
+                Comparator.<Integer>comparingLong(i -> nextActionTime[i]).thenComparingInt(i -> i)
+        );
+        for(int i = 0; i < numClients; i ++) {
+            schedule.add(i);
+        }
+
+        long numOrders = 0;
+        long spreadTotal = 0;
+        long spreadSamples = 0;
+        long depthTotal = 0;
+        long depthSamples = 0;
+        long nextPriceTime = p.pricerThreadWait;
+        while(true) {
+            Integer nextClient = schedule.peek();
+            long nextClientTime = nextClient == null ? Long.MAX_VALUE : nextActionTime[nextClient];
+            if(Math.min(nextClientTime, nextPriceTime) > p.duration) {
+                break;
+            }
+
+            if(nextPriceTime <= nextClientTime) {
+                exchange.swapPricer.stepToNewPrice();
+                nextPriceTime += p.pricerThreadWait;
+
+                // Sample the book each time the price moves
+                for(int size: exchange.printSizes()) {
+                    depthTotal += size;
+                }
+                depthSamples += 1;
+                int bestBid = exchange.getBestBid();
+                int bestAsk = exchange.getBestAsk();
+                if(bestBid > -1 && bestAsk < p.maxTicks) {
+                    spreadTotal += bestAsk - bestBid;
+                    spreadSamples += 1;
+                }
+            } else {
+                schedule.poll();
+                SimulatorClient client = simulator.clients[nextClient];
+                client.simulateLimitOrder();
+                numOrders += 1;
+                nextActionTime[nextClient] += p.threadWait + client.rand.nextInt(p.threadWait * 19);
+                schedule.add(nextClient);
+            }
+        }
+
+        long totalRequested = 0;
+        long totalFilled = 0;
+        for(SimulatorClient client: simulator.clients) {
+            totalRequested += client.totalRequested;
+            totalFilled += client.totalFilled;
+        }
+        return new SweepResult(
+                p,
+                numOrders,
+                totalRequested,
+                totalFilled,
+                spreadSamples == 0 ? 0 : (double) spreadTotal / spreadSamples,
+                depthSamples == 0 ? 0 : (double) depthTotal / depthSamples,
+                exchange.swapPricer.getTenYearSwapPrice()
+        );
+    }
+}
+
+
+public class ParameterSweep {
+    // Runs many independent simulations in parallel on a fork/join pool. Runs share no
+    // state, so the results are identical to running them one after another.
+    private final ForkJoinPool pool;
+
+    public ParameterSweep(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public ParameterSweep() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    private static class SweepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SweepParameters> runs;
+        private final SweepResult[] results;
+        private final int start;
+        private final int end;
+
+        SweepTask(List<SweepParameters> runs, SweepResult[] results, int start, int end) {
+            this.runs = runs;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute() {
+            if(end - start == 1) {
+                results[start] = new SimulationRun(runs.get(start)).run();
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(
+                    new SweepTask(runs, results, start, middle),
+                    new SweepTask(runs, results, middle, end)
+            );
+        }
+    }
+
+    List<SweepResult> run(List<SweepParameters> runs) {
+        // Results are returned in the same order as the parameters
+        SweepResult[] results = new SweepResult[runs.size()];
+        if(!runs.isEmpty()) {
+            pool.invoke(new SweepTask(runs, results, 0, runs.size()));
+        }
+        List<SweepResult> resultList = new ArrayList<>(results.length);
+        for(SweepResult result: results) {
+            resultList.add(result);
+        }
+        return resultList;
+    }
+
+    static List<SweepParameters> withSeeds(SweepParameters base, int numSeeds) {
+        // Monte Carlo repetitions of one parameter set, seeded from the base seed
+        DiscreteRandom seedGenerator = new DiscreteRandom(base.seed);
+        List<SweepParameters> runs = new ArrayList<>(numSeeds);
+        for(int i = 0; i < numSeeds; i ++) {
+            runs.add(base.withSeed(seedGenerator.nextLong()));
+        }
+        return runs;
+    }
+
+    static String formatTable(List<SweepResult> results) {
+        StringBuilder table = new StringBuilder(SweepResult.header()).append("\n");
+        for(SweepResult result: results) {
+            table.append(result).append("\n");
+        }
+        return table.toString();
+    }
+}
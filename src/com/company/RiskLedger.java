@@ -0,0 +1,135 @@
+package com.company;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+class RiskLimits {
+    // Limits applied to every client before an order is accepted. Use Long.MAX_VALUE for no limit.
+    final long maxOrderSize;
+    // Open (resting or queued) quantity on either side
+    final long maxOpenQuantity;
+    // Absolute net position, assuming every open order on one side fills
+    final long maxPosition;
+
+    public RiskLimits(long maxOrderSize, long maxOpenQuantity, long maxPosition) {
+        this.maxOrderSize = maxOrderSize;
+        this.maxOpenQuantity = maxOpenQuantity;
+        this.maxPosition = maxPosition;
+    }
+
+    static final RiskLimits UNLIMITED = new RiskLimits(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+}
+
+
+class RiskAccount {
+    // Counters for one client. Each counter sits on its own 64 byte cache line so that
+    // threads updating different counters, or neighbouring accounts, do not false share.
+    static final int OPEN_BUY = 0;
+    static final int OPEN_SELL = 1;
+    static final int POSITION = 2;
+    static final int VOLUME = 3;
+    static final int NOTIONAL = 4;
+    private static final int NUM_COUNTERS = 5;
+    // Longs per cache line
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray counters = new AtomicLongArray((NUM_COUNTERS + 2) * PADDING);
+
+    private static int index(int counter) {
+        // Skip a whole line at the start so the first counter is not next to the array header
+        return (counter + 1) * PADDING;
+    }
+
+    long get(int counter) {
+        return counters.get(index(counter));
+    }
+
+    long add(int counter, long delta) {
+        return counters.addAndGet(index(counter), delta);
+    }
+
+    long getOpenQuantity(int direction) {
+        return get(direction == 1 ? OPEN_BUY : OPEN_SELL);
+    }
+}
+
+
+public class RiskLedger {
+    // Exchange-owned view of every client's open quantity, filled position and traded
+    // notional. Updates are lock-free; a limit check reserves the quantity first and backs
+    // it out if a limit is broken, so concurrent orders can never jointly exceed a limit.
+    private final ConcurrentHashMap<UUID, RiskAccount> accounts = new ConcurrentHashMap<>();
+    private volatile RiskLimits limits = RiskLimits.UNLIMITED;
+
+    void setLimits(RiskLimits riskLimits) {
+        limits = riskLimits;
+    }
+
+    RiskAccount getAccount(UUID clientID) {
+        return accounts.computeIfAbsent(clientID, k -> new RiskAccount());
+    }
+
+    boolean reserve(UUID clientID, int direction, long size) {
+        // Add size to the open quantity on one side, unless that would break a limit
+        RiskLimits riskLimits = limits;
+        if(size > riskLimits.maxOrderSize) {
+            return false;
+        }
+        return adjustOpen(getAccount(clientID), direction, size, riskLimits);
+    }
+
+    boolean replace(UUID clientID, int direction, long oldSize, long newSize) {
+        // Swap an open order of oldSize for one of newSize as a single change
+        RiskLimits riskLimits = limits;
+        if(newSize > riskLimits.maxOrderSize) {
+            return false;
+        }
+        return adjustOpen(getAccount(clientID), direction, newSize - oldSize, riskLimits);
+    }
+
+    private boolean adjustOpen(RiskAccount account, int direction, long delta, RiskLimits riskLimits) {
+        int counter = direction == 1 ? RiskAccount.OPEN_BUY : RiskAccount.OPEN_SELL;
+        long open = account.add(counter, delta);
+        if(delta <= 0) {
+            return true;
+        }
+        long worstPosition = Math.abs(account.get(RiskAccount.POSITION) + direction * open);
+        if(open > riskLimits.maxOpenQuantity || worstPosition > riskLimits.maxPosition) {
+            account.add(counter, -delta);
+            return false;
+        }
+        return true;
+    }
+
+    void release(UUID clientID, int direction, long size) {
+        // Open quantity that was cancelled
+        getAccount(clientID).add(direction == 1 ? RiskAccount.OPEN_BUY : RiskAccount.OPEN_SELL, -size);
+    }
+
+    void fill(UUID clientID, int direction, long size, long notional) {
+        // Open quantity that traded, at a total of notional ticks
+        RiskAccount account = getAccount(clientID);
+        account.add(direction == 1 ? RiskAccount.OPEN_BUY : RiskAccount.OPEN_SELL, -size);
+        account.add(RiskAccount.POSITION, direction * size);
+        account.add(RiskAccount.VOLUME, size);
+        account.add(RiskAccount.NOTIONAL, notional);
+    }
+
+    long getOpenQuantity(UUID clientID, int direction) {
+        return getAccount(clientID).getOpenQuantity(direction);
+    }
+
+    long getPosition(UUID clientID) {
+        return getAccount(clientID).get(RiskAccount.POSITION);
+    }
+
+    long getTradedVolume(UUID clientID) {
+        return getAccount(clientID).get(RiskAccount.VOLUME);
+    }
+
+    long getTradedNotional(UUID clientID) {
+        return getAccount(clientID).get(RiskAccount.NOTIONAL);
+    }
+}
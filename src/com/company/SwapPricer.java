@@ -4,18 +4,87 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+class PriceSnapshot {
+    // Immutable set of prices from one step of the swap pricer, in ticks
+    final long step;
+    final int bondPrice;
+    final int assetSwapSpreadPrice;
+    final int tenYearSwapPrice;
+    // Tenors of the curve in years, and the swap price at each tenor. Never modified after
+    // construction; use getCurve for a copy.
+    final int[] tenors;
+    final int[] curve;
+
+    PriceSnapshot(long step, int bondPrice, int assetSwapSpreadPrice, int[] tenors, int[] curve) {
+        this.step = step;
+        this.bondPrice = bondPrice;
+        this.assetSwapSpreadPrice = assetSwapSpreadPrice;
+        this.tenYearSwapPrice = bondPrice + assetSwapSpreadPrice;
+        this.tenors = tenors;
+        this.curve = curve;
+    }
+
+    int getNumTenors() {
+        return tenors.length;
+    }
+
+    int getTenor(int index) {
+        return tenors[index];
+    }
+
+    int getCurvePrice(int index) {
+        return curve[index];
+    }
+
+    int[] getCurve() {
+        return curve.clone();
+    }
+}
+
+
+class CurveConfig {
+    // Immutable tenors (in years) and correlation of a configured curve, published as one
+    // object so that a step sees either all of it or none of it
+    final int[] tenors;
+    final double correlation;
+    final double noiseScale;
+
+    CurveConfig(int[] tenors, double correlation) {
+        this.tenors = tenors;
+        this.correlation = correlation;
+        this.noiseScale = Math.sqrt(1 - correlation * correlation);
+    }
+}
+
+
+interface PriceListener {
+    // Called on the pricer's thread after each new snapshot is published
+    void onPrice(PriceSnapshot snapshot);
+}
+
 
 public class SwapPricer extends Thread {
     DiscreteRandom rand = new DiscreteRandom();
     // We assume the tick size of bonds and asset swap spreads are equal, and also the 10 year swap.
     private int maxPrice;
-    private int currentBondPrice;
-    private int currentAssetSwapSpreadPrice;
     private int maxStepSize;
     private double sd;
     private int threadWait;
     LogWriter pricerLogger;
-    final Object pricerLock = new Object();
+
+    // The latest prices. Snapshots are immutable and only replaced, so readers need no lock.
+    private volatile PriceSnapshot snapshot;
+    private final CopyOnWriteArrayList<PriceListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Tenors and correlation of the curve, read once per step. Without a configured curve
+    // only the 10 year swap is priced.
+    private volatile CurveConfig curveConfig;
+    // Buffer for the random draws of one step, only used by the stepping thread
+    private double[] curveDraws = new double[0];
 
     public SwapPricer(
             int threadWait,
@@ -29,10 +98,19 @@ public class SwapPricer extends Thread {
         this.threadWait = threadWait;
         this.maxPrice = maxPrice;
         // Arbitrary initialization of bond and asset swap spread prices
-        this.currentBondPrice = meanBondPrice;
-        this.currentAssetSwapSpreadPrice = meanAssetSwapSpreadPrice;
+        this.snapshot = new PriceSnapshot(
+                0,
+                meanBondPrice,
+                meanAssetSwapSpreadPrice,
+                new int[]{10},
+                new int[]{meanBondPrice + meanAssetSwapSpreadPrice}
+        );
         this.maxStepSize = maxStepSize;
         this.sd = sd;
+        if(logDir == null) {
+            pricerLogger = new LogWriter("swap pricer");
+            return;
+        }
         try {
             String logFilePath = Paths.get(logDir.toString(), "swap_pricer.txt").toString();
             File swapPricerLogFile = new File(logFilePath);
@@ -44,38 +122,104 @@ public class SwapPricer extends Thread {
         }
     }
 
+    void configureCurve(int[] tenors, double correlation) {
+        // Price a curve of tenors (in years) alongside the 10 year swap. Every tenor starts at
+        // the current 10 year price, and each step moves it by correlation times the 10 year
+        // step plus sqrt(1 - correlation^2) times an independent shock drawn the same way as
+        // the 10 year step, so every tenor's steps have the 10 year step's variance. A 10 year
+        // tenor tracks the 10 year swap exactly. Safe to call while the pricer is running;
+        // the curve is published with the next step.
+        if(tenors.length == 0 || !(Math.abs(correlation) <= 1)) {
+            throw new IllegalArgumentException("A curve needs tenors and a correlation between -1 and 1, got " + correlation);
+        }
+        curveConfig = new CurveConfig(tenors.clone(), correlation);
+    }
+
+    void subscribe(PriceListener listener) {
+        listeners.add(listener);
+    }
+
+    void unsubscribe(PriceListener listener) {
+        listeners.remove(listener);
+    }
+
     void stepToNewPrice() {
+        PriceSnapshot current = snapshot;
         int bondStep;
         int assetSwapSpreadStep;
         do {
             bondStep = rand.nextNormalInteger(0, this.sd, this.maxStepSize);
             assetSwapSpreadStep = rand.nextNormalInteger(0, this.sd, this.maxStepSize);
         } while(
-                getTenYearSwapPrice() + bondStep + assetSwapSpreadStep < 0 ||
-                        this.currentBondPrice + bondStep < 0 ||
-                        this.currentAssetSwapSpreadPrice + assetSwapSpreadStep < 0 ||
+                current.tenYearSwapPrice + bondStep + assetSwapSpreadStep < 0 ||
+                        current.bondPrice + bondStep < 0 ||
+                        current.assetSwapSpreadPrice + assetSwapSpreadStep < 0 ||
                         // We force the prices to be below the maxPrice. In reality this doesn't happen
                         // and we would need to defend against this
-                        getTenYearSwapPrice() + bondStep + assetSwapSpreadStep >= maxPrice ||
-                        this.currentBondPrice + bondStep >= maxPrice ||
-                        this.currentAssetSwapSpreadPrice + assetSwapSpreadStep >= maxPrice
+                        current.tenYearSwapPrice + bondStep + assetSwapSpreadStep >= maxPrice ||
+                        current.bondPrice + bondStep >= maxPrice ||
+                        current.assetSwapSpreadPrice + assetSwapSpreadStep >= maxPrice
         );
 
-        synchronized(pricerLock) {
-            this.currentBondPrice += bondStep;
-            this.currentAssetSwapSpreadPrice += assetSwapSpreadStep;
+        int newBondPrice = current.bondPrice + bondStep;
+        int newAssetSwapSpreadPrice = current.assetSwapSpreadPrice + assetSwapSpreadStep;
+        CurveConfig config = curveConfig;
+        int[] tenors = config == null ? current.tenors : config.tenors;
+        int[] curve = stepCurve(current, config, bondStep + assetSwapSpreadStep, newBondPrice + newAssetSwapSpreadPrice);
+        PriceSnapshot next = new PriceSnapshot(
+                current.step + 1, newBondPrice, newAssetSwapSpreadPrice, tenors, curve
+        );
+        snapshot = next;
+        for(PriceListener listener: listeners) {
+            listener.onPrice(next);
         }
 
         String logString = "New bond price: " +
-                currentBondPrice +
+                next.bondPrice +
                 ", new asset swap spread price: " +
-                currentAssetSwapSpreadPrice +
+                next.assetSwapSpreadPrice +
                 ", new 10 year swap price: " +
-                getTenYearSwapPrice();
-        System.out.println(logString);
+                next.tenYearSwapPrice;
+        // Only echo to the console for logged sessions, so quiet runs do not contend on stdout
+        if(pricerLogger.isEnabled()) {
+            System.out.println(logString);
+        }
         pricerLogger.write(logString);
     }
 
+    private int[] stepCurve(PriceSnapshot current, CurveConfig config, int tenYearStep, int newTenYearPrice) {
+        if(config == null) {
+            return new int[]{newTenYearPrice};
+        }
+        int numTenors = config.tenors.length;
+        int[] curve = new int[numTenors];
+        // A newly configured curve starts every tenor at the 10 year price before this step
+        int[] previousCurve = current.curve;
+        if(current.tenors != config.tenors) {
+            previousCurve = new int[numTenors];
+            Arrays.fill(previousCurve, current.tenYearSwapPrice);
+        }
+        if(curveDraws.length != numTenors) {
+            curveDraws = new double[numTenors];
+        }
+
+        // Draw the shocks for every tenor in one batch, then apply them in a second pass. Like
+        // the 10 year step, each shock is the sum of a bond and an asset swap spread step.
+        for(int i = 0; i < numTenors; i ++) {
+            curveDraws[i] = rand.nextNormalInteger(0, this.sd, this.maxStepSize) + rand.nextNormalInteger(0, this.sd, this.maxStepSize);
+        }
+        double common = config.correlation * tenYearStep;
+        for(int i = 0; i < numTenors; i ++) {
+            if(config.tenors[i] == 10) {
+                curve[i] = newTenYearPrice;
+                continue;
+            }
+            int price = previousCurve[i] + (int) Math.round(common + config.noiseScale * curveDraws[i]);
+            curve[i] = Math.max(0, Math.min(maxPrice - 1, price));
+        }
+        return curve;
+    }
+
     public void run() {
         System.out.println("Starting swap pricer");
         while(!interrupted()) {
@@ -94,9 +238,11 @@ public class SwapPricer extends Thread {
         super.start();
     }
 
+    PriceSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     public int getTenYearSwapPrice() {
-        synchronized(pricerLock) {
-            return this.currentAssetSwapSpreadPrice + this.currentBondPrice;
-        }
+        return snapshot.tenYearSwapPrice;
     }
-}
\ No newline at end of file
+}
@@ -1,7 +1,13 @@
 package com.company;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
 
 
@@ -74,6 +80,164 @@ public class Test {
 
     }
 
+    static void testAmendOrder() {
+        Exchange exchange = new Exchange(10, -1, logDir);
+        Client client = new Client(exchange);
+        Client otherClient = new Client(exchange);
+        Client anotherClient = new Client(exchange);
+        UUID firstOrderID = client.sendLimitOrder(3, true, 4).orderID;
+        UUID secondOrderID = otherClient.sendLimitOrder(2, true, 4).orderID;
+        assert otherClient.amendOrder(firstOrderID, 4, 1) == null;
+
+        // Reducing at the same price keeps priority
+        OrderInformation amended = client.amendOrder(firstOrderID, 4, 1);
+        assert amended.orderID == firstOrderID;
+        assert exchange.printOrderBook()[4] == 3;
+        anotherClient.sendLimitOrder(1, false, 4);
+        assert client.getOpenOrderIDs().size() == 0;
+        assert otherClient.getOrderPosition(secondOrderID) == 2;
+        assert client.amendOrder(firstOrderID, 4, 1) == null;
+
+        // Moving the price matches first and rests the remainder under the same ID
+        anotherClient.sendLimitOrder(1, false, 5);
+        UUID thirdOrderID = client.sendLimitOrder(3, true, 3).orderID;
+        amended = client.amendOrder(thirdOrderID, 6, 2);
+        assert amended.orderID == thirdOrderID;
+        assert amended.numFilled == 1;
+        assert amended.totalPrice == 5;
+        int[] signedOrderBook = exchange.printOrderBook();
+        assert signedOrderBook[3] == 0;
+        assert signedOrderBook[5] == 0;
+        assert signedOrderBook[6] == 1;
+        assert client.getOrderPosition(thirdOrderID) == 1;
+
+        // Increasing the size loses priority
+        otherClient.sendLimitOrder(1, true, 6);
+        client.amendOrder(thirdOrderID, 6, 2);
+        anotherClient.sendLimitOrder(1, false, 6);
+        assert client.getOrderPosition(thirdOrderID) == 2;
+        assert exchange.printOrderBook()[6] == 2;
+
+        // Amends outside the book or to a negative size are rejected without touching the order
+        for(int[] priceAndSize: new int[][]{{10, 3}, {-1, 3}, {6, -1}, {7, -1}}) {
+            amended = client.amendOrder(thirdOrderID, priceAndSize[0], priceAndSize[1]);
+            assert !amended.accepted;
+            assert client.getOrderPosition(thirdOrderID) == 2;
+            assert exchange.printOrderBook()[6] == 2;
+            assert exchange.riskLedger.getOpenQuantity(client.getClientID(), 1) == 2;
+        }
+
+        // An equal but distinct ID, e.g. parsed back from a log, finds the same units
+        exchange = new Exchange(10, -1, logDir);
+        client = new Client(exchange);
+        UUID orderID = client.sendLimitOrder(3, true, 2).orderID;
+        UUID copiedID = UUID.fromString(orderID.toString());
+        assert client.amendOrder(copiedID, 4, 3).accepted;
+        signedOrderBook = exchange.printOrderBook();
+        assert signedOrderBook[2] == 0;
+        assert signedOrderBook[4] == 3;
+        assert client.getOrderPosition(orderID) == 3;
+        assert exchange.riskLedger.getOpenQuantity(client.getClientID(), 1) == 3;
+        assert client.cancelOrder(UUID.fromString(orderID.toString()), 2);
+        assert exchange.printOrderBook()[4] == 1;
+        assert exchange.riskLedger.getOpenQuantity(client.getClientID(), 1) == 1;
+    }
+
+    static void testRiskLedger() {
+        Exchange exchange = new Exchange(10, -1, logDir);
+        RiskLedger ledger = exchange.riskLedger;
+        Client client = new Client(exchange);
+        Client otherClient = new Client(exchange);
+        UUID clientID = client.getClientID();
+        UUID otherClientID = otherClient.getClientID();
+        client.sendLimitOrder(3, true, 4);
+        UUID sellOrderID = client.sendLimitOrder(2, false, 6).orderID;
+        assert ledger.getOpenQuantity(clientID, 1) == 3;
+        assert ledger.getOpenQuantity(clientID, -1) == 2;
+        otherClient.sendLimitOrder(2, false, 4);
+        assert ledger.getOpenQuantity(clientID, 1) == 1;
+        assert ledger.getPosition(clientID) == 2;
+        assert ledger.getPosition(otherClientID) == -2;
+        assert ledger.getTradedVolume(otherClientID) == 2;
+        assert ledger.getTradedNotional(otherClientID) == 8;
+        client.cancelOrder(sellOrderID, 2);
+        assert ledger.getOpenQuantity(clientID, -1) == 0;
+
+        // Limits on order size, open quantity and worst case position
+        ledger.setLimits(new RiskLimits(5, 6, 4));
+        assert !client.sendLimitOrder(6, true, 3).accepted;
+        assert !client.sendLimitOrder(4, true, 3).accepted;
+        assert !client.sendLimitOrder(2, true, 3).accepted;
+        UUID buyOrderID = client.sendLimitOrder(1, true, 3).orderID;
+        assert ledger.getOpenQuantity(clientID, 1) == 2;
+        assert client.sendLimitOrder(5, false, 8).accepted;
+        assert !client.amendOrder(buyOrderID, 2, 3).accepted;
+        assert client.getOrderPosition(buyOrderID) == 1;
+        assert exchange.printOrderBook()[3] == 1;
+
+        // Orders outside the book are rejected without reserving anything, in either mode
+        for(boolean batchMode: new boolean[]{false, true}) {
+            Exchange badOrderExchange = new Exchange(10, -1, null);
+            if(batchMode) {
+                badOrderExchange.enableBatchAuctions(-1, false);
+            }
+            Client badOrderClient = new Client(badOrderExchange);
+            assert !badOrderClient.sendLimitOrder(1, true, 10).accepted;
+            assert !badOrderClient.sendLimitOrder(1, false, -1).accepted;
+            assert !badOrderClient.sendLimitOrder(-1, true, 3).accepted;
+            assert badOrderExchange.riskLedger.getOpenQuantity(badOrderClient.getClientID(), 1) == 0;
+            assert badOrderExchange.riskLedger.getOpenQuantity(badOrderClient.getClientID(), -1) == 0;
+            assert badOrderClient.getOpenOrderIDs().isEmpty();
+        }
+
+        // Self-trade prevention cancels our own resting orders instead of trading with them
+        exchange = new Exchange(10, -1, logDir);
+        exchange.enableSelfTradePrevention();
+        ledger = exchange.riskLedger;
+        client = new Client(exchange);
+        otherClient = new Client(exchange);
+        client.sendLimitOrder(2, false, 5);
+        otherClient.sendLimitOrder(1, false, 5);
+        OrderInformation order = client.sendLimitOrder(2, true, 5);
+        assert order.numFilled == 1;
+        assert exchange.printOrderBook()[5] == 1;
+        assert ledger.getPosition(client.getClientID()) == 1;
+        assert ledger.getPosition(otherClient.getClientID()) == -1;
+        assert ledger.getOpenQuantity(client.getClientID(), -1) == 0;
+        assert ledger.getOpenQuantity(client.getClientID(), 1) == 1;
+
+        // In an auction, queued orders cancel our own earlier orders they cross
+        exchange = new Exchange(10, -1, logDir);
+        exchange.enableBatchAuctions(-1, false);
+        exchange.enableSelfTradePrevention();
+        ledger = exchange.riskLedger;
+        client = new Client(exchange);
+        otherClient = new Client(exchange);
+        UUID restingSellID = client.sendLimitOrder(2, false, 5).orderID;
+        assert exchange.runAuction().volume == 0;
+        client.sendLimitOrder(2, true, 6);
+        otherClient.sendLimitOrder(1, false, 5);
+        AuctionInformation auction = exchange.runAuction();
+        assert auction.volume == 1;
+        assert auction.clearingPrice == 5;
+        assert client.getOrderPosition(restingSellID) == 0;
+        assert ledger.getPosition(client.getClientID()) == 1;
+        assert ledger.getOpenQuantity(client.getClientID(), -1) == 0;
+        assert exchange.printOrderBook()[6] == 1;
+        assert exchange.printOrderBook()[5] == 0;
+
+        UUID queuedBuyID = client.sendLimitOrder(2, true, 4).orderID;
+        UUID queuedSellID = client.sendLimitOrder(2, false, 4).orderID;
+        assert exchange.runAuction().volume == 0;
+        assert client.getOrderPosition(queuedBuyID) == 0;
+        assert client.getOrderPosition(queuedSellID) == -2;
+        // The queued sell also crosses our resting buy
+        assert ledger.getOpenQuantity(client.getClientID(), 1) == 0;
+        assert ledger.getOpenQuantity(client.getClientID(), -1) == 2;
+        assert exchange.printOrderBook()[6] == 0;
+        assert exchange.printOrderBook()[4] == -2;
+    }
+
     static void testNextNormalInteger(DiscreteRandom rand) {
         int nextInteger;
         for(int i = 0; i < 10000; i ++) {
@@ -85,6 +249,71 @@ public class Test {
         }
     }
 
+    static void testSwapPricerCurve() throws InterruptedException {
+        // Main's default step parameters, where the steps are heavily truncated
+        SwapPricer swapPricer = new SwapPricer(-1, 100000, 25000, 25000, 100, 300, null);
+        swapPricer.rand = new DiscreteRandom(7);
+        int[] tenors = new int[]{2, 5, 10, 30};
+        swapPricer.configureCurve(tenors, 0.9);
+        List<PriceSnapshot> snapshots = new ArrayList<>();
+        swapPricer.subscribe(snapshots::add);
+        int numSteps = 1000;
+        for(int i = 0; i < numSteps; i ++) {
+            swapPricer.stepToNewPrice();
+        }
+        assert snapshots.size() == numSteps;
+        PriceSnapshot latest = swapPricer.getSnapshot();
+        assert latest == snapshots.get(numSteps - 1);
+        assert latest.step == numSteps;
+        assert latest.getNumTenors() == tenors.length;
+        assert latest.getCurvePrice(2) == swapPricer.getTenYearSwapPrice();
+
+        // Steps of the 30 year tenor should have the configured correlation with the 10 year
+        // steps, and the same variance
+        double sumProduct = 0;
+        double sumTenYear = 0;
+        double sumThirtyYear = 0;
+        PriceSnapshot previous = null;
+        for(PriceSnapshot snapshot: snapshots) {
+            if(previous != null) {
+                double tenYearStep = snapshot.getCurvePrice(2) - previous.getCurvePrice(2);
+                double thirtyYearStep = snapshot.getCurvePrice(3) - previous.getCurvePrice(3);
+                sumProduct += tenYearStep * thirtyYearStep;
+                sumTenYear += tenYearStep * tenYearStep;
+                sumThirtyYear += thirtyYearStep * thirtyYearStep;
+            }
+            previous = snapshot;
+        }
+        double correlation = sumProduct / Math.sqrt(sumTenYear * sumThirtyYear);
+        assert correlation > 0.85 && correlation < 0.95;
+        assert sumThirtyYear / sumTenYear > 0.8 && sumThirtyYear / sumTenYear < 1.25;
+
+        // Correlations outside [-1, 1] are rejected and leave the curve as it was
+        for(double badCorrelation: new double[]{1.5, -1.01, Double.NaN}) {
+            try {
+                swapPricer.configureCurve(new int[]{2, 10}, badCorrelation);
+                assert false;
+            } catch(IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        swapPricer.stepToNewPrice();
+        assert swapPricer.getSnapshot().getNumTenors() == tenors.length;
+
+        // A running pricer picks the curve up on its next step
+        SwapPricer runningPricer = new SwapPricer(1, 100000, 25000, 25000, 100, 300, null);
+        runningPricer.start();
+        runningPricer.configureCurve(tenors, 0.9);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(runningPricer.getSnapshot().getNumTenors() != tenors.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assert runningPricer.isAlive();
+        runningPricer.interrupt();
+        runningPricer.join();
+        assert runningPricer.getSnapshot().getNumTenors() == tenors.length;
+    }
+
     static void testOrderBook() {
         int maxTicks = 100;
         Exchange exchange = new Exchange(maxTicks, -1, logDir);
@@ -105,14 +334,293 @@ public class Test {
         }
     }
 
-    public static void main(String[] args) {
+    static void testDepthQueries() {
+        Exchange exchange = new Exchange(10, -1, logDir);
+        Client client = new Client(exchange);
+        client.sendLimitOrder(2, true, 1);
+        UUID bidID = client.sendLimitOrder(3, true, 3).orderID;
+        client.sendLimitOrder(4, false, 6);
+        client.sendLimitOrder(1, false, 8);
+        int[] depth = exchange.getDepth(0, 6);
+        assert depth.length == 7;
+        assert depth[1] == 2 && depth[3] == 3 && depth[6] == -4;
+        assert exchange.getDepth(8, 20).length == 2;
+        int[][] bids = exchange.getTopLevels(5, true);
+        assert bids.length == 2;
+        assert bids[0][0] == 3 && bids[0][1] == 3;
+        assert bids[1][0] == 1 && bids[1][1] == 2;
+        int[][] asks = exchange.getTopLevels(1, false);
+        assert asks.length == 1;
+        assert asks[0][0] == 6 && asks[0][1] == 4;
+
+        // Emptying the best levels moves the best prices inwards
+        client.cancelOrder(bidID, 3);
+        client.sendLimitOrder(4, true, 6);
+        assert exchange.getBestBid() == 1;
+        assert exchange.getBestAsk() == 8;
+        assert exchange.printSizes()[6] == 0;
+        assert exchange.getTopLevels(5, false).length == 1;
+    }
+
+    static void testLockStriping() throws InterruptedException {
+        Exchange exchange = new Exchange(1000, -1, null);
+        exchange.enableLockStriping(64);
+        Client[] clients = new Client[8];
+        for(int i = 0; i < clients.length; i ++) {
+            clients[i] = new Client(exchange);
+        }
+        clients[0].sendLimitOrder(1, true, 400);
+        clients[0].sendLimitOrder(1, false, 600);
+
+        Thread[] threads = new Thread[clients.length];
+        for(int i = 0; i < clients.length; i ++) {
+            Client client = clients[i];
+            DiscreteRandom rand = new DiscreteRandom(i);
+            threads[i] = new Thread(() -> {
+                for(int j = 0; j < 2000; j ++) {
+                    boolean buying = rand.nextBoolean();
+                    // Mostly passive orders, with the occasional crossing order
+                    int tickPrice = buying ? 300 + rand.nextInt(100) : 601 + rand.nextInt(100);
+                    if(rand.nextInt(50) == 0) {
+                        tickPrice = buying ? 650 : 350;
+                    }
+                    client.sendLimitOrder(rand.nextInt(5) + 1, buying, tickPrice);
+                    List<UUID> openOrderIDs = client.getOpenOrderIDs();
+                    if(openOrderIDs.size() > 5) {
+                        UUID orderID = openOrderIDs.get(rand.nextInt(openOrderIDs.size()));
+                        client.cancelOrder(orderID, Math.abs(client.getOrderPosition(orderID)) / 2);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread thread: threads) {
+            thread.join();
+        }
+
+        int[] signedOrderBook = exchange.printOrderBook();
+        int[] sizedOrderBook = exchange.printSizes();
+        int totalSize = 0;
+        for(int i = 0; i < sizedOrderBook.length; i ++) {
+            assert Math.abs(signedOrderBook[i]) == sizedOrderBook[i];
+            assert signedOrderBook[i] <= 0 || i <= exchange.getBestBid();
+            assert signedOrderBook[i] >= 0 || i >= exchange.getBestAsk();
+            totalSize += sizedOrderBook[i];
+        }
+        assert exchange.getBestBid() < exchange.getBestAsk();
+        int totalOpen = 0;
+        long totalLedgerOpen = 0;
+        long totalPosition = 0;
+        for(Client client: clients) {
+            for(UUID orderID: client.getOpenOrderIDs()) {
+                totalOpen += Math.abs(client.getOrderPosition(orderID));
+            }
+            totalLedgerOpen += exchange.riskLedger.getOpenQuantity(client.getClientID(), 1);
+            totalLedgerOpen += exchange.riskLedger.getOpenQuantity(client.getClientID(), -1);
+            totalPosition += exchange.riskLedger.getPosition(client.getClientID());
+        }
+        assert totalOpen == totalSize;
+        assert totalLedgerOpen == totalSize;
+        assert totalPosition == 0;
+    }
+
+    static void testBatchAuction() {
+        Exchange exchange = new Exchange(10, -1, null);
+        exchange.enableBatchAuctions(-1, false);
+        TradeAnalytics analytics = new TradeAnalytics(Long.MAX_VALUE, 10);
+        exchange.attachAnalytics(analytics);
+        Client client = new Client(exchange);
+        Client otherClient = new Client(exchange);
+        Client anotherClient = new Client(exchange);
+        client.sendLimitOrder(3, true, 5);
+        otherClient.sendLimitOrder(2, true, 4);
+        anotherClient.sendLimitOrder(4, false, 3);
+        UUID cancelledOrderID = anotherClient.sendLimitOrder(3, false, 6).orderID;
+        anotherClient.cancelOrder(cancelledOrderID, 1);
+        // Nothing trades or reaches the book before the auction
+        assert exchange.printSizes()[5] == 0;
+        assert client.getOpenOrderIDs().size() == 1;
+
+        AuctionInformation auction = exchange.runAuction();
+        assert auction.volume == 4;
+        assert auction.clearingPrice == 3;
+        int[] signedOrderBook = exchange.printOrderBook();
+        assert signedOrderBook[4] == 1;
+        assert signedOrderBook[5] == 0;
+        assert signedOrderBook[6] == -2;
+        assert client.getOpenOrderIDs().size() == 0;
+        assert otherClient.getOpenOrderIDs().size() == 1;
+        assert analytics.getRollingVWAP() == 3.0;
+        assert analytics.getTotalVolume() == 4;
+        assert exchange.runAuction().volume == 0;
+
+        // The marginal level is split by time, or in proportion to size
+        for(boolean proRata: new boolean[]{false, true}) {
+            exchange = new Exchange(10, -1, null);
+            exchange.enableBatchAuctions(-1, proRata);
+            client = new Client(exchange);
+            otherClient = new Client(exchange);
+            anotherClient = new Client(exchange);
+            UUID smallOrderID = client.sendLimitOrder(2, true, 5).orderID;
+            UUID largeOrderID = otherClient.sendLimitOrder(6, true, 5).orderID;
+            anotherClient.sendLimitOrder(4, false, 5);
+            assert exchange.runAuction().volume == 4;
+            assert client.getOrderPosition(smallOrderID) == (proRata ? 1 : 0);
+            assert otherClient.getOrderPosition(largeOrderID) == (proRata ? 3 : 4);
+            assert exchange.printOrderBook()[5] == 4;
+        }
+    }
+
+    static void testTradeAnalytics() {
+        Exchange exchange = new Exchange(5, -1, logDir);
+        TradeAnalytics analytics = new TradeAnalytics(Long.MAX_VALUE, 10);
+        exchange.attachAnalytics(analytics);
+        Client client = new Client(exchange);
+        Client otherClient = new Client(exchange);
+        Client anotherClient = new Client(exchange);
+        client.sendLimitOrder(3, false, 2);
+        otherClient.sendLimitOrder(2, false, 3);
+        assert exchange.getBestAsk() == 2;
+        assert exchange.getBestBid() == -1;
+        assert Double.isNaN(analytics.getMid());
+        anotherClient.sendLimitOrder(4, true, 3);
+        assert exchange.getBestAsk() == 3;
+        assert analytics.getRollingVWAP() == 2.25;
+        assert analytics.getTotalVolume() == 4;
+        Bar bar = analytics.getCurrentBar();
+        assert bar.open == 2 && bar.high == 3 && bar.low == 2 && bar.close == 3;
+        assert bar.volume == 4 && bar.numTrades == 2;
+        assert analytics.getClientStatistics(anotherClient.getClientID()).getNetPosition() == 4;
+        assert analytics.getClientStatistics(anotherClient.getClientID()).numAggressiveFills == 2;
+        assert analytics.getClientStatistics(client.getClientID()).getNetPosition() == -3;
+        assert analytics.getClientStatistics(otherClient.getClientID()).numPassiveFills == 1;
+        client.sendLimitOrder(1, true, 1);
+        assert analytics.getMid() == 2.0;
+        assert analytics.getSpread() == 2;
+
+        // Bars roll over and the oldest drops out of the rolling window
+        UUID clientID = client.getClientID();
+        TradeAnalytics rollingAnalytics = new TradeAnalytics(10, 2);
+        rollingAnalytics.publish(new FillEvent(0, 1, 1, clientID, clientID, 1));
+        rollingAnalytics.publish(new FillEvent(15, 3, 1, clientID, clientID, 1));
+        assert rollingAnalytics.getRollingVWAP(15) == 2.0;
+        rollingAnalytics.publish(new FillEvent(25, 5, 3, clientID, clientID, 1));
+        assert rollingAnalytics.getRollingVWAP(25) == 4.5;
+        assert rollingAnalytics.getTotalVolume() == 5;
+        Bar[] bars = rollingAnalytics.getBars(25);
+        assert bars.length == 2;
+        assert bars[0].startTime == 10 && bars[1].startTime == 20;
+        assert bars[1].open == 5 && bars[1].volume == 3;
+
+        // The window is a span of time, so bars expire even if nothing trades
+        assert rollingAnalytics.getRollingVWAP(35) == 5.0;
+        assert Double.isNaN(rollingAnalytics.getRollingVWAP(45));
+        assert rollingAnalytics.getBars(45).length == 0 && rollingAnalytics.getCurrentBar(45) == null;
+        rollingAnalytics.publish(new FillEvent(3600, 7, 1, clientID, clientID, 1));
+        assert rollingAnalytics.getRollingVWAP(3600) == 7.0;
+        Bar latestBar = rollingAnalytics.getCurrentBar(3600);
+        assert latestBar.open == 7 && latestBar.startTime == 3600;
+    }
+
+    static void testTradeAnalyticsShutdown() throws InterruptedException {
+        // Once the analytics thread has exited, events are applied by their publisher
+        UUID clientID = UUID.randomUUID();
+        TradeAnalytics analytics = new TradeAnalytics(Long.MAX_VALUE, 1, 1);
+        analytics.start();
+        analytics.interrupt();
+        analytics.join();
+        for(int i = 0; i < 3; i ++) {
+            analytics.publish(new FillEvent(i, 2, 1, clientID, clientID, 1));
+        }
+        assert analytics.getTotalVolume() == 3;
+    }
+
+    static void testParameterSweep() {
+        SweepParameters base = new SweepParameters(1000, 250, 250, 20, 10.0, 20, 10, 10, 100, 10000, 42);
+        List<SweepParameters> runs = ParameterSweep.withSeeds(base, 8);
+        List<SweepResult> parallelResults = new ParameterSweep().run(runs);
+        assert parallelResults.size() == 8;
+        for(int i = 0; i < runs.size(); i ++) {
+            // Each run is isolated and seeded, so it is reproducible on its own
+            SweepResult sequentialResult = new SimulationRun(runs.get(i)).run();
+            assert parallelResults.get(i).toString().equals(sequentialResult.toString());
+            assert sequentialResult.numOrders > 0;
+            assert sequentialResult.totalFilled <= sequentialResult.totalRequested;
+        }
+        assert ParameterSweep.formatTable(parallelResults).split("\n").length == 9;
+    }
+
+    static void testTradeHistory() throws IOException, InterruptedException {
+        Path historyDir = Files.createTempDirectory("history");
+        // Four events per segment, so the session spans two segments
+        TradeHistory history = new TradeHistory(historyDir, 4);
+        Exchange exchange = new Exchange(10, -1, null);
+        exchange.attachHistory(history);
+        Client client = new Client(exchange);
+        Client otherClient = new Client(exchange);
+        UUID firstOrderID = client.sendLimitOrder(3, true, 4).orderID;
+        otherClient.sendLimitOrder(2, false, 4);
+        client.cancelOrder(firstOrderID, 1);
+        UUID secondOrderID = otherClient.sendLimitOrder(1, false, 6).orderID;
+        otherClient.amendOrder(secondOrderID, 7, 2);
+        assert history.getNumSegments() == 2;
+        assert history.getEvents(Long.MIN_VALUE, Long.MAX_VALUE).size() == 7;
+
+        List<HistoryEvent> lifecycle = history.getOrderLifecycle(firstOrderID);
+        assert lifecycle.size() == 3;
+        assert lifecycle.get(0).type == HistoryEvent.ORDER_ADDED && lifecycle.get(0).size == 3;
+        assert lifecycle.get(1).type == HistoryEvent.FILL && lifecycle.get(1).size == 2;
+        assert lifecycle.get(2).type == HistoryEvent.CANCEL && lifecycle.get(2).size == 1;
+        List<HistoryEvent> fills = history.getClientFills(otherClient.getClientID(), Long.MIN_VALUE, Long.MAX_VALUE);
+        assert fills.size() == 1;
+        assert fills.get(0).price == 4 && fills.get(0).size == -2;
+        long fillTime = fills.get(0).time;
+        assert history.getClientFills(otherClient.getClientID(), fillTime, fillTime).size() == 1;
+        assert history.getClientFills(otherClient.getClientID(), fillTime + 1, Long.MAX_VALUE).isEmpty();
+
+        // The full segment is compressed in the background and still readable
+        File uncompressed = Paths.get(historyDir.toString(), "segment-000000.dat").toFile();
+        for(int i = 0; i < 100 && uncompressed.exists(); i ++) {
+            Thread.sleep(10);
+        }
+        assert !uncompressed.exists();
+        assert Paths.get(historyDir.toString(), "segment-000000.dat.z").toFile().exists();
+        assert history.getOrderLifecycle(firstOrderID).size() == 3;
+
+        // A later session picks up where this one left off
+        history.close();
+        TradeHistory reopened = new TradeHistory(historyDir, 4);
+        assert reopened.getEvents(Long.MIN_VALUE, Long.MAX_VALUE).size() == 7;
+        lifecycle = reopened.getOrderLifecycle(secondOrderID);
+        assert lifecycle.size() == 2;
+        assert lifecycle.get(1).type == HistoryEvent.AMEND && lifecycle.get(1).price == 7 && lifecycle.get(1).size == -2;
+        reopened.append(System.currentTimeMillis(), HistoryEvent.CANCEL, secondOrderID, otherClient.getClientID(), 7, -2);
+        assert reopened.getOrderLifecycle(secondOrderID).size() == 3;
+        reopened.close();
+        for(File file: Objects.requireNonNull(historyDir.toFile().listFiles())) {
+            assert file.delete();
+        }
+        assert historyDir.toFile().delete();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
         Main.prepareLoggingDir(logDir);
         Main.prepareLoggingDir(simulatorDir);
         DiscreteRandom rand = new DiscreteRandom();
         testLimitOrder();
         testOrderPositions();
         testCancelOrder();
+        testAmendOrder();
+        testRiskLedger();
         testNextNormalInteger(rand);
+        testSwapPricerCurve();
         testOrderBook();
+        testDepthQueries();
+        testLockStriping();
+        testBatchAuction();
+        testTradeAnalytics();
+        testTradeAnalyticsShutdown();
+        testParameterSweep();
+        testTradeHistory();
     }
 }
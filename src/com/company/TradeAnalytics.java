@@ -0,0 +1,397 @@
+package com.company;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+abstract class MarketEvent {
+    final long time;
+
+    MarketEvent(long time) {
+        this.time = time;
+    }
+
+    abstract void applyTo(TradeAnalytics analytics);
+}
+
+
+class FillEvent extends MarketEvent {
+    final int price;
+    final int size;
+    final UUID aggressorClientID;
+    final UUID passiveClientID;
+    // Direction of the aggressor, 1 if buying and -1 if selling
+    final int direction;
+
+    public FillEvent(long time, int price, int size, UUID aggressorClientID, UUID passiveClientID, int direction) {
+        super(time);
+        this.price = price;
+        this.size = size;
+        this.aggressorClientID = aggressorClientID;
+        this.passiveClientID = passiveClientID;
+        this.direction = direction;
+    }
+
+    void applyTo(TradeAnalytics analytics) {
+        analytics.onFill(this);
+    }
+}
+
+
+class QuoteEvent extends MarketEvent {
+    // -1 when there are no bids, and maxPrice when there are no asks
+    final int bestBid;
+    final int bestAsk;
+    final int maxPrice;
+
+    public QuoteEvent(long time, int bestBid, int bestAsk, int maxPrice) {
+        super(time);
+        this.bestBid = bestBid;
+        this.bestAsk = bestAsk;
+        this.maxPrice = maxPrice;
+    }
+
+    void applyTo(TradeAnalytics analytics) {
+        analytics.onQuote(this);
+    }
+}
+
+
+class Bar {
+    final long startTime;
+    // Prices are in ticks. With no trades in the bar they carry over the previous close,
+    // or are -1 if there has never been a trade.
+    int open;
+    int high;
+    int low;
+    int close;
+    long volume;
+    long notional;
+    int numTrades;
+    // Latest mid and spread in ticks, NaN and -1 respectively while a side of the book is empty
+    double mid;
+    int spread;
+
+    Bar(long startTime, int previousClose, double mid, int spread) {
+        this.startTime = startTime;
+        this.open = previousClose;
+        this.high = previousClose;
+        this.low = previousClose;
+        this.close = previousClose;
+        this.mid = mid;
+        this.spread = spread;
+    }
+
+    Bar copy() {
+        Bar bar = new Bar(startTime, close, mid, spread);
+        bar.open = open;
+        bar.high = high;
+        bar.low = low;
+        bar.volume = volume;
+        bar.notional = notional;
+        bar.numTrades = numTrades;
+        return bar;
+    }
+
+    double getVWAP() {
+        if(volume == 0) {
+            return Double.NaN;
+        }
+        return (double) notional / volume;
+    }
+
+    public String toString() {
+        return "start: " + startTime + ", open: " + open + ", high: " + high + ", low: " + low +
+                ", close: " + close + ", volume: " + volume + ", vwap: " + getVWAP() +
+                ", mid: " + mid + ", spread: " + spread;
+    }
+}
+
+
+class ClientFillStatistics {
+    long boughtVolume;
+    long soldVolume;
+    // Sum of price * size over all fills, in ticks
+    long notional;
+    int numAggressiveFills;
+    int numPassiveFills;
+
+    ClientFillStatistics copy() {
+        ClientFillStatistics statistics = new ClientFillStatistics();
+        statistics.boughtVolume = boughtVolume;
+        statistics.soldVolume = soldVolume;
+        statistics.notional = notional;
+        statistics.numAggressiveFills = numAggressiveFills;
+        statistics.numPassiveFills = numPassiveFills;
+        return statistics;
+    }
+
+    long getNetPosition() {
+        return boughtVolume - soldVolume;
+    }
+}
+
+
+public class TradeAnalytics extends Thread {
+    // Incrementally maintains bars, a rolling VWAP, the mid and spread, and per-client fill
+    // statistics from the events published by an exchange. Until start() is called, and
+    // again once this thread has exited, events are applied on the publishing thread; in
+    // between they are queued and applied on this thread, off the matching path. Memory is
+    // bounded by numBars and the queue capacity.
+    private final long barInterval;
+    private final Bar[] bars;
+    // Length of the rolling window, numBars bar intervals ending with the current one, or
+    // Long.MAX_VALUE if that is too long to represent
+    private final long windowLength;
+    // Index of the latest bar in bars, and the number of bars held, oldest first before it
+    private int currentBar = -1;
+    private int numFilledBars = 0;
+    private int lastClose = -1;
+    // Volume and notional over all bars still held in bars
+    private long rollingVolume = 0;
+    private long rollingNotional = 0;
+    private long totalVolume = 0;
+    private double currentMid = Double.NaN;
+    private int currentSpread = -1;
+    private final HashMap<UUID, ClientFillStatistics> clientStatistics = new HashMap<>();
+
+    private final BlockingQueue<MarketEvent> eventQueue;
+    private volatile boolean running = false;
+    final Object analyticsLock = new Object();
+
+    public TradeAnalytics(long barInterval, int numBars, int queueCapacity) {
+        if(barInterval < 1 || numBars < 1) {
+            throw new IllegalArgumentException("Bar interval and number of bars must be positive");
+        }
+        this.barInterval = barInterval;
+        this.bars = new Bar[numBars];
+        this.windowLength = barInterval > Long.MAX_VALUE / numBars ? Long.MAX_VALUE : barInterval * numBars;
+        this.eventQueue = new ArrayBlockingQueue<>(queueCapacity);
+        setDaemon(true);
+    }
+
+    public TradeAnalytics(long barInterval, int numBars) {
+        this(barInterval, numBars, 65536);
+    }
+
+    void publish(MarketEvent event) {
+        try {
+            // Blocks the publisher while the analytics thread is too far behind, but never
+            // once the thread has exited
+            while(running) {
+                if(eventQueue.offer(event, 10, TimeUnit.MILLISECONDS)) {
+                    if(!running) {
+                        // The thread may have exited before it could take the event
+                        drainQueue();
+                    }
+                    return;
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        apply(event);
+    }
+
+    private void drainQueue() {
+        MarketEvent event;
+        while((event = eventQueue.poll()) != null) {
+            apply(event);
+        }
+    }
+
+    private void apply(MarketEvent event) {
+        synchronized(analyticsLock) {
+            rollTo(event.time);
+            event.applyTo(this);
+        }
+    }
+
+    private void expire(long time) {
+        // Drop bars that started before the rolling window ending with time's bar
+        long barStart = time - Math.floorMod(time, barInterval);
+        if(windowLength == Long.MAX_VALUE || barStart < Long.MIN_VALUE + windowLength) {
+            return;
+        }
+        long windowStart = barStart - windowLength + barInterval;
+        while(numFilledBars > 0) {
+            Bar oldest = bars[Math.floorMod(currentBar - numFilledBars + 1, bars.length)];
+            if(oldest.startTime >= windowStart) {
+                break;
+            }
+            rollingVolume -= oldest.volume;
+            rollingNotional -= oldest.notional;
+            numFilledBars -= 1;
+        }
+    }
+
+    private void rollTo(long time) {
+        // Expire old bars, and start a new bar if the event falls outside the current one.
+        // Intervals without any events do not get a bar of their own.
+        expire(time);
+        long barStart = time - Math.floorMod(time, barInterval);
+        if(numFilledBars > 0 && bars[currentBar].startTime >= barStart) {
+            return;
+        }
+        int previousClose = lastClose;
+        currentBar = (currentBar + 1) % bars.length;
+        if(numFilledBars == bars.length) {
+            // Evict the oldest bar from the rolling window
+            rollingVolume -= bars[currentBar].volume;
+            rollingNotional -= bars[currentBar].notional;
+        } else {
+            numFilledBars += 1;
+        }
+        bars[currentBar] = new Bar(barStart, previousClose, currentMid, currentSpread);
+    }
+
+    void onFill(FillEvent fill) {
+        Bar bar = bars[currentBar];
+        if(bar.volume == 0) {
+            bar.open = fill.price;
+            bar.high = fill.price;
+            bar.low = fill.price;
+        }
+        bar.high = Math.max(bar.high, fill.price);
+        bar.low = Math.min(bar.low, fill.price);
+        bar.close = fill.price;
+        lastClose = fill.price;
+        long notional = (long) fill.price * fill.size;
+        bar.volume += fill.size;
+        bar.notional += notional;
+        bar.numTrades += 1;
+        rollingVolume += fill.size;
+        rollingNotional += notional;
+        totalVolume += fill.size;
+
+        ClientFillStatistics aggressor = clientStatistics.computeIfAbsent(fill.aggressorClientID, k -> new ClientFillStatistics());
+        ClientFillStatistics passive = clientStatistics.computeIfAbsent(fill.passiveClientID, k -> new ClientFillStatistics());
+        aggressor.numAggressiveFills += 1;
+        passive.numPassiveFills += 1;
+        aggressor.notional += notional;
+        passive.notional += notional;
+        if(fill.direction == 1) {
+            aggressor.boughtVolume += fill.size;
+            passive.soldVolume += fill.size;
+        } else {
+            aggressor.soldVolume += fill.size;
+            passive.boughtVolume += fill.size;
+        }
+    }
+
+    void onQuote(QuoteEvent quote) {
+        if(quote.bestBid > -1 && quote.bestAsk < quote.maxPrice) {
+            currentMid = (quote.bestBid + quote.bestAsk) / 2.0;
+            currentSpread = quote.bestAsk - quote.bestBid;
+        } else {
+            currentMid = Double.NaN;
+            currentSpread = -1;
+        }
+        bars[currentBar].mid = currentMid;
+        bars[currentBar].spread = currentSpread;
+    }
+
+    double getRollingVWAP(long now) {
+        // VWAP in ticks over the numBars bar intervals up to now, NaN if nothing has traded
+        synchronized(analyticsLock) {
+            expire(now);
+            if(rollingVolume == 0) {
+                return Double.NaN;
+            }
+            return (double) rollingNotional / rollingVolume;
+        }
+    }
+
+    double getRollingVWAP() {
+        return getRollingVWAP(System.currentTimeMillis());
+    }
+
+    long getRollingVolume(long now) {
+        synchronized(analyticsLock) {
+            expire(now);
+            return rollingVolume;
+        }
+    }
+
+    long getRollingVolume() {
+        return getRollingVolume(System.currentTimeMillis());
+    }
+
+    long getTotalVolume() {
+        synchronized(analyticsLock) {
+            return totalVolume;
+        }
+    }
+
+    double getMid() {
+        synchronized(analyticsLock) {
+            return currentMid;
+        }
+    }
+
+    int getSpread() {
+        synchronized(analyticsLock) {
+            return currentSpread;
+        }
+    }
+
+    Bar getCurrentBar(long now) {
+        // Copy of the latest bar, null if it is outside the rolling window
+        synchronized(analyticsLock) {
+            expire(now);
+            return numFilledBars > 0 ? bars[currentBar].copy() : null;
+        }
+    }
+
+    Bar getCurrentBar() {
+        return getCurrentBar(System.currentTimeMillis());
+    }
+
+    Bar[] getBars(long now) {
+        // Copies of the bars in the rolling window up to now, oldest first
+        synchronized(analyticsLock) {
+            expire(now);
+            Bar[] history = new Bar[numFilledBars];
+            for(int i = 0; i < numFilledBars; i ++) {
+                int index = Math.floorMod(currentBar - numFilledBars + 1 + i, bars.length);
+                history[i] = bars[index].copy();
+            }
+            return history;
+        }
+    }
+
+    Bar[] getBars() {
+        return getBars(System.currentTimeMillis());
+    }
+
+    ClientFillStatistics getClientStatistics(UUID clientID) {
+        synchronized(analyticsLock) {
+            ClientFillStatistics statistics = clientStatistics.get(clientID);
+            return statistics == null ? new ClientFillStatistics() : statistics.copy();
+        }
+    }
+
+    public void run() {
+        while(!interrupted()) {
+            try {
+                apply(eventQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        // Later events are applied by their publishers
+        running = false;
+        drainQueue();
+        System.out.println("Trade analytics exited");
+    }
+
+    public void start() {
+        System.out.println("Starting trade analytics");
+        running = true;
+        super.start();
+    }
+}
@@ -0,0 +1,616 @@
+package com.company;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+class HistoryEvent {
+    static final byte ORDER_ADDED = 0;
+    static final byte ORDER_REJECTED = 1;
+    static final byte FILL = 2;
+    static final byte CANCEL = 3;
+    static final byte AMEND = 4;
+    private static final String[] TYPE_NAMES = {"added", "rejected", "fill", "cancel", "amend"};
+
+    final long time;
+    final byte type;
+    final UUID orderID;
+    final UUID clientID;
+    final int price;
+    // Positive for buys and negative for sells
+    final int size;
+
+    public HistoryEvent(long time, byte type, UUID orderID, UUID clientID, int price, int size) {
+        this.time = time;
+        this.type = type;
+        this.orderID = orderID;
+        this.clientID = clientID;
+        this.price = price;
+        this.size = size;
+    }
+
+    public String toString() {
+        return "time: " + time + ", event: " + TYPE_NAMES[type] + ", order ID: " + orderID +
+                ", client ID: " + clientID + ", price: " + price + ", size: " + size;
+    }
+}
+
+
+class RowList {
+    // Growable list of rows, as most orders only have a few events
+    int[] rows = new int[2];
+    int size = 0;
+
+    void add(int row) {
+        if(size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+        }
+        rows[size ++] = row;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(rows, size);
+    }
+}
+
+
+class HistorySegment {
+    // A fixed number of events, stored column by column. While active the segment is a
+    // memory mapped file with an in-memory order and client index. Once full it is sealed:
+    // the indexes and a sparse time index are written next to it, and the data is then
+    // compressed in blocks of rows that can be inflated on their own.
+    static final int HEADER_SIZE = 64;
+    // Columns: time, order ID high and low bits, client ID high and low bits, price, size, type
+    private static final int[] COLUMN_WIDTHS = {8, 8, 8, 8, 8, 4, 4, 1};
+    private static final int[] COLUMN_STARTS = {0, 8, 16, 24, 32, 40, 44, 48};
+    static final int ROW_SIZE = 49;
+    // Rows between entries of the sparse time index
+    static final int TIME_INDEX_STRIDE = 1024;
+    // Rows per compressed block
+    static final int BLOCK_ROWS = 4096;
+    private static final int MAGIC = 0x54524448;
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+
+    final int number;
+    final int capacity;
+    final Path dataPath;
+    final Path compressedPath;
+    final Path orderIndexPath;
+    final Path clientIndexPath;
+    final Path metaPath;
+
+    volatile boolean sealed = false;
+    // Null once the data has been compressed
+    volatile MappedByteBuffer mapped;
+    int rowCount = 0;
+    long minTime = Long.MAX_VALUE;
+    long maxTime = Long.MIN_VALUE;
+    // Time of every TIME_INDEX_STRIDE'th row
+    long[] sparseTimes = new long[0];
+    int numSparseTimes = 0;
+    // Rows of each order and client, until the sealed indexes are written
+    HashMap<UUID, RowList> orderRows = new HashMap<>();
+    HashMap<UUID, RowList> clientRows = new HashMap<>();
+    // The sealed indexes, mapped once when the segment is sealed or opened
+    private MappedByteBuffer orderIndex;
+    private MappedByteBuffer clientIndex;
+
+    // File offsets of the compressed blocks, and the last block inflated
+    private long[] blockOffsets;
+    private int cachedBlock = -1;
+    private ByteBuffer cachedBlockData;
+
+    HistorySegment(Path directory, int number, int capacity) {
+        this.number = number;
+        this.capacity = capacity;
+        String name = String.format("segment-%06d", number);
+        this.dataPath = Paths.get(directory.toString(), name + ".dat");
+        this.compressedPath = Paths.get(directory.toString(), name + ".dat.z");
+        this.orderIndexPath = Paths.get(directory.toString(), name + ".orders.idx");
+        this.clientIndexPath = Paths.get(directory.toString(), name + ".clients.idx");
+        this.metaPath = Paths.get(directory.toString(), name + ".meta");
+    }
+
+    private static int offset(int column, int columnCapacity, int row) {
+        return columnCapacity * COLUMN_STARTS[column] + row * COLUMN_WIDTHS[column];
+    }
+
+    void create() throws IOException {
+        map();
+        mapped.putInt(0, MAGIC);
+        mapped.putInt(4, capacity);
+        mapped.putInt(8, 0);
+    }
+
+    private void map() throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(dataPath.toFile(), "rw")) {
+            mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * ROW_SIZE);
+        }
+    }
+
+    void append(long time, byte type, UUID orderID, UUID clientID, int price, int size) {
+        int row = rowCount;
+        mapped.putLong(HEADER_SIZE + offset(0, capacity, row), time);
+        mapped.putLong(HEADER_SIZE + offset(1, capacity, row), orderID.getMostSignificantBits());
+        mapped.putLong(HEADER_SIZE + offset(2, capacity, row), orderID.getLeastSignificantBits());
+        mapped.putLong(HEADER_SIZE + offset(3, capacity, row), clientID.getMostSignificantBits());
+        mapped.putLong(HEADER_SIZE + offset(4, capacity, row), clientID.getLeastSignificantBits());
+        mapped.putInt(HEADER_SIZE + offset(5, capacity, row), price);
+        mapped.putInt(HEADER_SIZE + offset(6, capacity, row), size);
+        mapped.put(HEADER_SIZE + offset(7, capacity, row), type);
+        rowCount += 1;
+        // Publish the row count last, so a reopened segment never sees a partial row
+        mapped.putInt(8, rowCount);
+        indexRow(row, time, orderID, clientID);
+    }
+
+    private void indexRow(int row, long time, UUID orderID, UUID clientID) {
+        minTime = Math.min(minTime, time);
+        maxTime = Math.max(maxTime, time);
+        if(row % TIME_INDEX_STRIDE == 0) {
+            if(numSparseTimes == sparseTimes.length) {
+                sparseTimes = Arrays.copyOf(sparseTimes, Math.max(4, sparseTimes.length * 2));
+            }
+            sparseTimes[numSparseTimes ++] = time;
+        }
+        orderRows.computeIfAbsent(orderID, k -> new RowList()).add(row);
+        clientRows.computeIfAbsent(clientID, k -> new RowList()).add(row);
+    }
+
+    private static HistoryEvent read(ByteBuffer data, int base, int columnCapacity, int row) {
+        return new HistoryEvent(
+                data.getLong(base + offset(0, columnCapacity, row)),
+                data.get(base + offset(7, columnCapacity, row)),
+                new UUID(data.getLong(base + offset(1, columnCapacity, row)), data.getLong(base + offset(2, columnCapacity, row))),
+                new UUID(data.getLong(base + offset(3, columnCapacity, row)), data.getLong(base + offset(4, columnCapacity, row))),
+                data.getInt(base + offset(5, columnCapacity, row)),
+                data.getInt(base + offset(6, columnCapacity, row))
+        );
+    }
+
+    HistoryEvent read(int row) throws IOException {
+        // Read from the mapped file if it is still there, otherwise from the row's block
+        MappedByteBuffer data = mapped;
+        if(data != null) {
+            return read(data, HEADER_SIZE, capacity, row);
+        }
+        synchronized(this) {
+            int block = row / BLOCK_ROWS;
+            if(block != cachedBlock) {
+                cachedBlockData = inflateBlock(block);
+                cachedBlock = block;
+            }
+            return read(cachedBlockData, 0, BLOCK_ROWS, row % BLOCK_ROWS);
+        }
+    }
+
+    boolean mayBeInTime(int row, long fromTime, long toTime) {
+        // Whether row could lie between the two times, going by the sparse time index alone
+        int entry = row / TIME_INDEX_STRIDE;
+        long earliest = sparseTimes[entry];
+        long latest = entry + 1 < numSparseTimes ? sparseTimes[entry + 1] : maxTime;
+        return latest >= fromTime && earliest <= toTime;
+    }
+
+    int firstRowInTime(long fromTime) {
+        // First row of the last stride of the sparse time index that starts before fromTime
+        int low = 0;
+        int high = numSparseTimes - 1;
+        int entry = 0;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            if(sparseTimes[middle] < fromTime) {
+                entry = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return entry * TIME_INDEX_STRIDE;
+    }
+
+    void seal() throws IOException {
+        // Write the indexes and metadata of a full segment, then drop the in-memory indexes.
+        // Nothing is appended by then, so queries can keep using them until sealed is set.
+        mapped.force();
+        writeIndex(orderIndexPath, orderRows);
+        writeIndex(clientIndexPath, clientRows);
+        mapIndexes();
+        try(DataOutputStream meta = new DataOutputStream(Files.newOutputStream(metaPath))) {
+            meta.writeInt(capacity);
+            meta.writeInt(rowCount);
+            meta.writeLong(minTime);
+            meta.writeLong(maxTime);
+            meta.writeInt(numSparseTimes);
+            for(int i = 0; i < numSparseTimes; i ++) {
+                meta.writeLong(sparseTimes[i]);
+            }
+        }
+        synchronized(this) {
+            sealed = true;
+            orderRows = null;
+            clientRows = null;
+        }
+    }
+
+    private static void writeIndex(Path path, HashMap<UUID, RowList> rows) throws IOException {
+        // Entries of (key high bits, key low bits, row), sorted so keys can be binary searched
+        List<UUID> keys = new ArrayList<>(rows.keySet());
+        keys.sort(HistorySegment::compareKeys);
+        int numEntries = 0;
+        for(RowList keyRows: rows.values()) {
+            numEntries += keyRows.size;
+        }
+        ByteBuffer index = ByteBuffer.allocate(numEntries * INDEX_ENTRY_SIZE);
+        for(UUID key: keys) {
+            for(int row: rows.get(key).toArray()) {
+                index.putLong(key.getMostSignificantBits());
+                index.putLong(key.getLeastSignificantBits());
+                index.putInt(row);
+            }
+        }
+        Files.write(path, index.array());
+    }
+
+    private void mapIndexes() throws IOException {
+        try(FileChannel channel = FileChannel.open(orderIndexPath)) {
+            orderIndex = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try(FileChannel channel = FileChannel.open(clientIndexPath)) {
+            clientIndex = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static int compareKeys(UUID first, UUID second) {
+        int compared = Long.compare(first.getMostSignificantBits(), second.getMostSignificantBits());
+        return compared != 0 ? compared : Long.compare(first.getLeastSignificantBits(), second.getLeastSignificantBits());
+    }
+
+    int[] lookup(UUID key, boolean byOrder) throws IOException {
+        // Rows for an order or client, in row order
+        synchronized(this) {
+            if(!sealed) {
+                RowList keyRows = (byOrder ? orderRows : clientRows).get(key);
+                return keyRows == null ? new int[0] : keyRows.toArray();
+            }
+        }
+        // Only absolute gets are used, so queries can share the mapping
+        ByteBuffer index = byOrder ? orderIndex : clientIndex;
+        int numEntries = index.capacity() / INDEX_ENTRY_SIZE;
+        int low = 0;
+        int high = numEntries;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            UUID middleKey = new UUID(index.getLong(middle * INDEX_ENTRY_SIZE), index.getLong(middle * INDEX_ENTRY_SIZE + 8));
+            if(compareKeys(middleKey, key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        RowList keyRows = new RowList();
+        for(int i = low; i < numEntries; i ++) {
+            int entryOffset = i * INDEX_ENTRY_SIZE;
+            if(index.getLong(entryOffset) != key.getMostSignificantBits() || index.getLong(entryOffset + 8) != key.getLeastSignificantBits()) {
+                break;
+            }
+            keyRows.add(index.getInt(entryOffset + 16));
+        }
+        return keyRows.toArray();
+    }
+
+    void compress() throws IOException {
+        // Replace the sealed data file with deflated blocks of BLOCK_ROWS rows. Each block is
+        // laid out like a segment of capacity BLOCK_ROWS without the header. The file starts
+        // with the number of blocks, then the offset of each block and of the end.
+        int numBlocks = (rowCount + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        Path temporaryPath = Paths.get(compressedPath.toString() + ".tmp");
+        byte[] block = new byte[BLOCK_ROWS * ROW_SIZE];
+        byte[] compressed = new byte[block.length];
+        long[] offsets = new long[numBlocks + 1];
+        Deflater deflater = new Deflater();
+        try(RandomAccessFile file = new RandomAccessFile(temporaryPath.toFile(), "rw")) {
+            file.seek(4 + 8L * offsets.length);
+            for(int b = 0; b < numBlocks; b ++) {
+                int firstRow = b * BLOCK_ROWS;
+                int numRows = Math.min(BLOCK_ROWS, rowCount - firstRow);
+                Arrays.fill(block, (byte) 0);
+                for(int column = 0; column < COLUMN_WIDTHS.length; column ++) {
+                    ByteBuffer source = mapped.duplicate();
+                    source.position(HEADER_SIZE + offset(column, capacity, firstRow));
+                    source.get(block, offset(column, BLOCK_ROWS, 0), numRows * COLUMN_WIDTHS[column]);
+                }
+                deflater.reset();
+                deflater.setInput(block);
+                deflater.finish();
+                offsets[b] = file.getFilePointer();
+                while(!deflater.finished()) {
+                    file.write(compressed, 0, deflater.deflate(compressed));
+                }
+            }
+            offsets[numBlocks] = file.getFilePointer();
+            file.seek(0);
+            file.writeInt(numBlocks);
+            for(long blockOffset: offsets) {
+                file.writeLong(blockOffset);
+            }
+        } finally {
+            deflater.end();
+        }
+        Files.move(temporaryPath, compressedPath);
+        mapped = null;
+        Files.delete(dataPath);
+    }
+
+    private ByteBuffer inflateBlock(int block) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(compressedPath.toFile(), "r")) {
+            if(blockOffsets == null) {
+                long[] offsets = new long[file.readInt() + 1];
+                for(int i = 0; i < offsets.length; i ++) {
+                    offsets[i] = file.readLong();
+                }
+                blockOffsets = offsets;
+            }
+            byte[] compressed = new byte[(int) (blockOffsets[block + 1] - blockOffsets[block])];
+            file.seek(blockOffsets[block]);
+            file.readFully(compressed);
+            Inflater inflater = new Inflater();
+            try {
+                byte[] data = new byte[BLOCK_ROWS * ROW_SIZE];
+                inflater.setInput(compressed);
+                inflater.inflate(data);
+                return ByteBuffer.wrap(data);
+            } catch(DataFormatException e) {
+                throw new IOException("Corrupt trade history block " + block + " in " + compressedPath, e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    static HistorySegment open(Path directory, int number) throws IOException {
+        // Load a segment left by an earlier session
+        HistorySegment segment = new HistorySegment(directory, number, 0);
+        if(Files.exists(segment.metaPath)) {
+            try(DataInputStream meta = new DataInputStream(Files.newInputStream(segment.metaPath))) {
+                segment = new HistorySegment(directory, number, meta.readInt());
+                segment.rowCount = meta.readInt();
+                segment.minTime = meta.readLong();
+                segment.maxTime = meta.readLong();
+                segment.numSparseTimes = meta.readInt();
+                segment.sparseTimes = new long[segment.numSparseTimes];
+                for(int i = 0; i < segment.numSparseTimes; i ++) {
+                    segment.sparseTimes[i] = meta.readLong();
+                }
+            }
+            if(Files.exists(segment.dataPath)) {
+                // Compression did not finish last time, so it is redone
+                Files.deleteIfExists(Paths.get(segment.compressedPath.toString() + ".tmp"));
+                Files.deleteIfExists(segment.compressedPath);
+                segment.map();
+            }
+            segment.mapIndexes();
+            segment.orderRows = null;
+            segment.clientRows = null;
+            segment.sealed = true;
+            return segment;
+        }
+
+        // Still active: rebuild the in-memory indexes from the data
+        try(RandomAccessFile file = new RandomAccessFile(segment.dataPath.toFile(), "r")) {
+            if(file.readInt() != MAGIC) {
+                throw new IOException("Not a trade history segment: " + segment.dataPath);
+            }
+            segment = new HistorySegment(directory, number, file.readInt());
+        }
+        segment.map();
+        int storedRows = segment.mapped.getInt(8);
+        for(int row = 0; row < storedRows; row ++) {
+            HistoryEvent event = read(segment.mapped, HEADER_SIZE, segment.capacity, row);
+            segment.rowCount = row + 1;
+            segment.indexRow(row, event.time, event.orderID, event.clientID);
+        }
+        return segment;
+    }
+}
+
+
+public class TradeHistory {
+    // Append-only store of executions and order lifecycle events, split into fixed size,
+    // memory mapped, columnar segments that persist across sessions. Queries by order, by
+    // client and time, or by time only read the segments, blocks and rows they need.
+    // Full segments are sealed and compressed on a background thread.
+    private final Path directory;
+    private final int segmentCapacity;
+    private final CopyOnWriteArrayList<HistorySegment> segments = new CopyOnWriteArrayList<>();
+    private HistorySegment activeSegment;
+    private long lastTime = Long.MIN_VALUE;
+    private final Object historyLock = new Object();
+
+    public TradeHistory(Path directory, int segmentCapacity) throws IOException {
+        this.directory = directory;
+        this.segmentCapacity = segmentCapacity;
+        Files.createDirectories(directory);
+
+        // Pick up segments from earlier sessions
+        TreeSet<Integer> numbers = new TreeSet<>();
+        for(File file: Objects.requireNonNull(directory.toFile().listFiles())) {
+            String name = file.getName();
+            if(name.startsWith("segment-") && (name.endsWith(".dat") || name.endsWith(".meta"))) {
+                numbers.add(Integer.parseInt(name.substring(8, 14)));
+            }
+        }
+        for(int number: numbers) {
+            HistorySegment segment = HistorySegment.open(directory, number);
+            segments.add(segment);
+            if(segment.rowCount > 0) {
+                lastTime = Math.max(lastTime, segment.maxTime);
+            }
+        }
+        HistorySegment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        for(HistorySegment segment: segments) {
+            // Finish sealing or compressing whatever an earlier session left off
+            if((!segment.sealed && (segment != last || segment.rowCount == segment.capacity)) || segment.mapped != null && segment.sealed) {
+                sealInBackground(segment);
+            }
+        }
+        if(last == null || last.sealed || last.rowCount == last.capacity) {
+            activeSegment = newSegment(last == null ? 0 : last.number + 1);
+        } else {
+            activeSegment = last;
+        }
+    }
+
+    public TradeHistory(Path directory) throws IOException {
+        // Segments of about 50MB
+        this(directory, 1 << 20);
+    }
+
+    private HistorySegment newSegment(int number) throws IOException {
+        HistorySegment segment = new HistorySegment(directory, number, segmentCapacity);
+        segment.create();
+        segments.add(segment);
+        return segment;
+    }
+
+    void append(long time, byte type, UUID orderID, UUID clientID, int price, int size) {
+        synchronized(historyLock) {
+            // Keep the time column sorted even if the clock steps back
+            lastTime = Math.max(lastTime, time);
+            try {
+                if(activeSegment.rowCount == activeSegment.capacity) {
+                    HistorySegment full = activeSegment;
+                    activeSegment = newSegment(full.number + 1);
+                    sealInBackground(full);
+                }
+                activeSegment.append(lastTime, type, orderID, clientID, price, size);
+            } catch(IOException e) {
+                System.out.println("Trade history append failed: " + e);
+            }
+        }
+    }
+
+    private void sealInBackground(HistorySegment segment) {
+        Thread sealer = new Thread(() -> {
+            try {
+                if(!segment.sealed) {
+                    segment.seal();
+                }
+                segment.compress();
+            } catch(IOException e) {
+                System.out.println("Sealing trade history segment " + segment.number + " failed: " + e);
+            }
+        }, "history-sealer-" + segment.number);
+        sealer.setDaemon(true);
+        sealer.start();
+    }
+
+    private static boolean overlaps(HistorySegment segment, long fromTime, long toTime) {
+        // The row count and time range of a segment that is not sealed are only stable under
+        // historyLock. Once sealed is seen they no longer change.
+        return segment.rowCount > 0 && segment.maxTime >= fromTime && segment.minTime <= toTime;
+    }
+
+    private List<HistoryEvent> lookup(UUID key, boolean byOrder, long fromTime, long toTime) throws IOException {
+        List<HistoryEvent> events = new ArrayList<>();
+        for(HistorySegment segment: segments) {
+            if(!segment.sealed) {
+                // The active segment is still being written
+                synchronized(historyLock) {
+                    if(overlaps(segment, fromTime, toTime)) {
+                        addRows(events, segment, segment.lookup(key, byOrder), fromTime, toTime);
+                    }
+                }
+            } else if(overlaps(segment, fromTime, toTime)) {
+                addRows(events, segment, segment.lookup(key, byOrder), fromTime, toTime);
+            }
+        }
+        return events;
+    }
+
+    private static void addRows(List<HistoryEvent> events, HistorySegment segment, int[] rows, long fromTime, long toTime)
+            throws IOException {
+        for(int row: rows) {
+            if(!segment.mayBeInTime(row, fromTime, toTime)) {
+                continue;
+            }
+            HistoryEvent event = segment.read(row);
+            if(event.time >= fromTime && event.time <= toTime) {
+                events.add(event);
+            }
+        }
+    }
+
+    List<HistoryEvent> getOrderLifecycle(UUID orderID) throws IOException {
+        return lookup(orderID, true, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    List<HistoryEvent> getClientEvents(UUID clientID, long fromTime, long toTime) throws IOException {
+        return lookup(clientID, false, fromTime, toTime);
+    }
+
+    List<HistoryEvent> getClientFills(UUID clientID, long fromTime, long toTime) throws IOException {
+        List<HistoryEvent> fills = new ArrayList<>();
+        for(HistoryEvent event: getClientEvents(clientID, fromTime, toTime)) {
+            if(event.type == HistoryEvent.FILL) {
+                fills.add(event);
+            }
+        }
+        return fills;
+    }
+
+    List<HistoryEvent> getEvents(long fromTime, long toTime) throws IOException {
+        // Every event between the two times inclusive, in the order they were recorded
+        List<HistoryEvent> events = new ArrayList<>();
+        for(HistorySegment segment: segments) {
+            if(!segment.sealed) {
+                synchronized(historyLock) {
+                    if(overlaps(segment, fromTime, toTime)) {
+                        scan(segment, fromTime, toTime, events);
+                    }
+                }
+            } else if(overlaps(segment, fromTime, toTime)) {
+                scan(segment, fromTime, toTime, events);
+            }
+        }
+        return events;
+    }
+
+    private static void scan(HistorySegment segment, long fromTime, long toTime, List<HistoryEvent> events) throws IOException {
+        for(int row = segment.firstRowInTime(fromTime); row < segment.rowCount; row ++) {
+            HistoryEvent event = segment.read(row);
+            if(event.time > toTime) {
+                break;
+            }
+            if(event.time >= fromTime) {
+                events.add(event);
+            }
+        }
+    }
+
+    int getNumSegments() {
+        return segments.size();
+    }
+
+    void close() {
+        synchronized(historyLock) {
+            if(activeSegment.mapped != null) {
+                activeSegment.mapped.force();
+            }
+        }
+    }
+}